@@ -0,0 +1,293 @@
+/*
+ * Host-side benchmarks of the SQLCipher engine and of the native CursorWindow storage
+ * of SQLCipher for Android.
+ *
+ * Built for Linux x86_64 against the same amalgamation and the same CursorWindow
+ * sources as libsqlcipher.so (see the buildHostBenchmark task in native.gradle), so
+ * it runs on a plain CI machine with no emulator or device. The JNI entry points, such
+ * as native_fill_window, need a JVM and are not built here: these benchmarks measure
+ * the sqlite calls and the CursorWindow methods those entry points are made of, so
+ * changes to the JNI code itself, outside CursorWindow, do not show up in them.
+ *
+ *   native_benchmark [filter] [iterations]
+ *
+ * Each benchmark is warmed up and then run the given number of times; the median and
+ * the minimum time per operation are reported in nanoseconds, one line per benchmark,
+ * so the output of two builds can be diffed directly.
+ */
+
+#undef LOG_TAG
+#define LOG_TAG "Benchmark"
+
+#include <sqlite3.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <vector>
+
+#include "CursorWindow.h"
+
+using namespace sqlcipher;
+
+#define WINDOW_SIZE (2 * 1024 * 1024)
+#define NUM_ROWS 10000
+#define WARMUP_RUNS 3
+
+static const char * kTestText = "The quick brown fox jumps over the lazy dog";
+
+static char gDatabasePath[256];
+static sqlite3 * gDatabase;
+
+static uint64_t now_ns()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t)ts.tv_sec * 1000000000ull + ts.tv_nsec;
+}
+
+static void check(int err, int expected, const char * what)
+{
+    if (err != expected) {
+        fprintf(stderr, "%s failed: %d (%s)\n", what, err,
+                gDatabase != NULL ? sqlite3_errmsg(gDatabase) : "no database");
+        exit(1);
+    }
+}
+
+static sqlite3 * open_keyed(const char * path)
+{
+    sqlite3 * handle;
+    check(sqlite3_open_v2(path, &handle, SQLITE_OPEN_READWRITE | SQLITE_OPEN_CREATE, NULL),
+          SQLITE_OK, "sqlite3_open_v2");
+    check(sqlite3_exec(handle, "PRAGMA key = 'benchmark';", NULL, NULL, NULL),
+          SQLITE_OK, "PRAGMA key");
+    return handle;
+}
+
+static void setup_database()
+{
+    snprintf(gDatabasePath, sizeof(gDatabasePath), "/tmp/sqlcipher-benchmark-%d.db", getpid());
+    unlink(gDatabasePath);
+    gDatabase = open_keyed(gDatabasePath);
+    check(sqlite3_exec(gDatabase,
+                       "CREATE TABLE t (id INTEGER PRIMARY KEY, i INTEGER, d REAL, s TEXT);",
+                       NULL, NULL, NULL), SQLITE_OK, "CREATE TABLE");
+
+    sqlite3_stmt * statement;
+    check(sqlite3_exec(gDatabase, "BEGIN;", NULL, NULL, NULL), SQLITE_OK, "BEGIN");
+    check(sqlite3_prepare_v2(gDatabase, "INSERT INTO t (i, d, s) VALUES (?, ?, ?);", -1,
+                             &statement, NULL), SQLITE_OK, "prepare insert");
+    for (int i = 0; i < NUM_ROWS; i++) {
+        sqlite3_bind_int64(statement, 1, i);
+        sqlite3_bind_double(statement, 2, i * 0.5);
+        sqlite3_bind_text(statement, 3, kTestText, -1, SQLITE_STATIC);
+        check(sqlite3_step(statement), SQLITE_DONE, "insert");
+        sqlite3_reset(statement);
+    }
+    sqlite3_finalize(statement);
+    check(sqlite3_exec(gDatabase, "COMMIT;", NULL, NULL, NULL), SQLITE_OK, "COMMIT");
+}
+
+/**
+ * Copies the current row of statement into window with the CursorWindow calls
+ * native_fill_window makes for each type, returning false if the window is full. This is
+ * a simplified stand-in, not the fill code of the library: it has none of its retry,
+ * window reset or UTF-8 handling.
+ */
+static bool copy_row(sqlite3_stmt * statement, CursorWindow * window, int numColumns)
+{
+    field_slot_t * fieldDir = window->allocRow();
+    if (!fieldDir) {
+        return false;
+    }
+    int row = window->getNumRows() - 1;
+    for (int i = 0; i < numColumns; i++) {
+        switch (sqlite3_column_type(statement, i)) {
+        case SQLITE_INTEGER:
+            if (!window->putLong(row, i, sqlite3_column_int64(statement, i))) {
+                return false;
+            }
+            break;
+        case SQLITE_FLOAT:
+            if (!window->putDouble(row, i, sqlite3_column_double(statement, i))) {
+                return false;
+            }
+            break;
+        case SQLITE_TEXT: {
+            uint8_t const * text = (uint8_t const *)sqlite3_column_text16(statement, i);
+            size_t size = sqlite3_column_bytes16(statement, i);
+            uint32_t offset = window->alloc(size);
+            if (!offset) {
+                return false;
+            }
+            window->copyIn(offset, text, size);
+            field_slot_t * fieldSlot = window->getFieldSlot(row, i);
+            fieldSlot->type = FIELD_TYPE_STRING;
+            fieldSlot->data.buffer.offset = offset;
+            fieldSlot->data.buffer.size = size;
+            break;
+        }
+        default:
+            if (!window->putNull(row, i)) {
+                return false;
+            }
+            break;
+        }
+    }
+    return true;
+}
+
+/**
+ * Steps a query over the test table and stores every row in a window, which measures
+ * sqlite stepping and the CursorWindow allocation and put methods. Operation: one row.
+ */
+static int bench_fill_window()
+{
+    static CursorWindow * window = NULL;
+    if (window == NULL) {
+        window = new CursorWindow(WINDOW_SIZE, WINDOW_SIZE, WINDOW_SIZE * 4);
+        window->initBuffer(true);
+    }
+    window->clear();
+    sqlite3_stmt * statement;
+    check(sqlite3_prepare_v2(gDatabase, "SELECT id, i, d, s FROM t;", -1, &statement, NULL),
+          SQLITE_OK, "prepare select");
+    window->setNumColumns(4);
+    int numRows = 0;
+    while (sqlite3_step(statement) == SQLITE_ROW) {
+        if (!copy_row(statement, window, 4)) {
+            break;
+        }
+        numRows++;
+    }
+    sqlite3_finalize(statement);
+    return numRows;
+}
+
+/** Reads every field of a filled window back. Operation: one row. */
+static int bench_window_read()
+{
+    static CursorWindow * window = NULL;
+    if (window == NULL) {
+        window = new CursorWindow(WINDOW_SIZE, WINDOW_SIZE, WINDOW_SIZE * 4);
+        window->initBuffer(true);
+        window->setNumColumns(2);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            window->allocRow();
+            window->putLong(i, 0, i);
+            window->putDouble(i, 1, i * 0.5);
+        }
+    }
+    int64_t longSum = 0;
+    double doubleSum = 0;
+    int numRows = window->getNumRows();
+    for (int i = 0; i < numRows; i++) {
+        int64_t l;
+        double d;
+        window->getLong(i, 0, &l);
+        window->getDouble(i, 1, &d);
+        longSum += l;
+        doubleSum += d;
+    }
+    if (longSum < 0 || doubleSum < 0) {
+        fprintf(stderr, "unexpected sum\n");
+    }
+    return numRows;
+}
+
+/** Binds and executes a prepared insert inside one transaction. Operation: one row. */
+static int bench_bind_insert()
+{
+    const int numRows = 1000;
+    sqlite3_stmt * statement;
+    check(sqlite3_exec(gDatabase, "BEGIN;", NULL, NULL, NULL), SQLITE_OK, "BEGIN");
+    check(sqlite3_prepare_v2(gDatabase, "INSERT INTO t (i, d, s) VALUES (?, ?, ?);", -1,
+                             &statement, NULL), SQLITE_OK, "prepare insert");
+    for (int i = 0; i < numRows; i++) {
+        sqlite3_bind_int64(statement, 1, i);
+        sqlite3_bind_double(statement, 2, i * 0.5);
+        sqlite3_bind_text(statement, 3, kTestText, -1, SQLITE_TRANSIENT);
+        check(sqlite3_step(statement), SQLITE_DONE, "insert");
+        sqlite3_reset(statement);
+    }
+    sqlite3_finalize(statement);
+    // roll back so every run inserts into a table of the same size
+    check(sqlite3_exec(gDatabase, "ROLLBACK;", NULL, NULL, NULL), SQLITE_OK, "ROLLBACK");
+    return numRows;
+}
+
+/** Prepares, binds and finalizes a statement, as a compiled-sql cache miss does. */
+static int bench_prepare()
+{
+    const int numStatements = 1000;
+    for (int i = 0; i < numStatements; i++) {
+        sqlite3_stmt * statement;
+        check(sqlite3_prepare_v2(gDatabase, "SELECT id, i, d, s FROM t WHERE id = ?;", -1,
+                                 &statement, NULL), SQLITE_OK, "prepare");
+        sqlite3_bind_int64(statement, 1, i);
+        sqlite3_step(statement);
+        sqlite3_finalize(statement);
+    }
+    return numStatements;
+}
+
+/** Opens and keys the test database, including the key derivation. Operation: one open. */
+static int bench_key()
+{
+    sqlite3 * handle = open_keyed(gDatabasePath);
+    check(sqlite3_exec(handle, "SELECT count(*) FROM sqlite_master;", NULL, NULL, NULL),
+          SQLITE_OK, "first read after keying");
+    sqlite3_close(handle);
+    return 1;
+}
+
+typedef struct {
+    const char * name;
+    int (*run)();
+    int iterations;
+} benchmark_t;
+
+static benchmark_t sBenchmarks[] = {
+    {"cursor_window_fill", bench_fill_window, 20},
+    {"cursor_window_read", bench_window_read, 50},
+    {"statement_bind_insert", bench_bind_insert, 20},
+    {"statement_prepare", bench_prepare, 20},
+    {"database_key", bench_key, 5},
+};
+
+int main(int argc, char ** argv)
+{
+    const char * filter = argc > 1 ? argv[1] : NULL;
+    int iterations = argc > 2 ? atoi(argv[2]) : 0;
+
+    setup_database();
+    printf("%-24s %12s %12s %8s\n", "benchmark", "median ns/op", "min ns/op", "runs");
+    for (size_t i = 0; i < sizeof(sBenchmarks) / sizeof(sBenchmarks[0]); i++) {
+        benchmark_t * benchmark = &sBenchmarks[i];
+        if (filter != NULL && strstr(benchmark->name, filter) == NULL) {
+            continue;
+        }
+        int runs = iterations > 0 ? iterations : benchmark->iterations;
+        for (int j = 0; j < WARMUP_RUNS; j++) {
+            benchmark->run();
+        }
+        std::vector<double> results;
+        for (int j = 0; j < runs; j++) {
+            uint64_t start = now_ns();
+            int ops = benchmark->run();
+            uint64_t elapsed = now_ns() - start;
+            results.push_back((double)elapsed / (ops > 0 ? ops : 1));
+        }
+        std::sort(results.begin(), results.end());
+        printf("%-24s %12.1f %12.1f %8d\n", benchmark->name,
+               results[results.size() / 2], results[0], runs);
+    }
+
+    sqlite3_close(gDatabase);
+    unlink(gDatabasePath);
+    return 0;
+}
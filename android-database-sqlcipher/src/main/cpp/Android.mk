@@ -5,7 +5,7 @@ LOCAL_PATH := $(MY_PATH)
 
 LOCAL_CFLAGS +=  $(SQLCIPHER_CFLAGS) $(SQLCIPHER_OTHER_CFLAGS)
 LOCAL_C_INCLUDES += $(LOCAL_PATH)
-LOCAL_LDLIBS := -llog
+LOCAL_LDLIBS := -llog -ldl
 LOCAL_LDFLAGS += -L$(ANDROID_NATIVE_ROOT_DIR)/$(TARGET_ARCH_ABI)
 LOCAL_STATIC_LIBRARIES += static-libcrypto
 LOCAL_MODULE    := libsqlcipher
@@ -16,6 +16,7 @@ LOCAL_SRC_FILES := sqlite3.c \
 	net_sqlcipher_database_SQLiteProgram.cpp \
 	net_sqlcipher_database_SQLiteQuery.cpp \
 	net_sqlcipher_database_SQLiteStatement.cpp \
+	net_sqlcipher_database_SQLiteBlob.cpp \
 	net_sqlcipher_CursorWindow.cpp \
 	CursorWindow.cpp
 
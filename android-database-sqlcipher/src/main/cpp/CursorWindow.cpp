@@ -31,6 +31,10 @@ CursorWindow::CursorWindow(size_t initialSize, size_t growthPaddingSize, size_t
   mInitialSize = initialSize;
   mGrowthPaddingSize = growthPaddingSize;
   mMaxSize = maxSize;
+  mData = NULL;
+  mRowSlots = NULL;
+  mRowSlotCapacity = 0;
+  mUtf8Strings = false;
   LOG_WINDOW("CursorWindow::CursorWindow initialSize:%d growBySize:%d maxSize:%d\n",
              initialSize, growthPaddingSize, maxSize);
 }
@@ -38,7 +42,10 @@ CursorWindow::CursorWindow(size_t initialSize, size_t growthPaddingSize, size_t
 bool CursorWindow::initBuffer(bool localOnly)
 {
   void* data = malloc(mInitialSize);
-  if(data){
+  void* rowSlots = malloc(ROW_SLOT_INITIAL_NUM_ROWS * sizeof(row_slot_t));
+  if(data && rowSlots){
+    mRowSlots = (row_slot_t *) rowSlots;
+    mRowSlotCapacity = ROW_SLOT_INITIAL_NUM_ROWS;
     mData = (uint8_t *) data;
     mHeader = (window_header_t *) mData;
     mSize = mInitialSize;
@@ -47,25 +54,48 @@ bool CursorWindow::initBuffer(bool localOnly)
                mFreeOffset, mSize, mInitialSize, mGrowthPaddingSize, mMaxSize, mData);
     return true;
   }
+  free(data);
+  free(rowSlots);
   return false;
 }
 
+bool CursorWindow::recycle()
+{
+  // don't hand the decrypted rows of this cursor over to the next one
+  memset(mData, 0, mFreeOffset < mSize ? mFreeOffset : mSize);
+  if(mSize != mInitialSize){
+    void* data = realloc((void *)mData, mInitialSize);
+    if(data == NULL) return false;
+    mData = (uint8_t *) data;
+    mHeader = (window_header_t *) mData;
+    mSize = mInitialSize;
+  }
+  if(mRowSlotCapacity != ROW_SLOT_INITIAL_NUM_ROWS){
+    void* rowSlots = realloc((void *)mRowSlots, ROW_SLOT_INITIAL_NUM_ROWS * sizeof(row_slot_t));
+    if(rowSlots == NULL) return false;
+    mRowSlots = (row_slot_t *) rowSlots;
+    mRowSlotCapacity = ROW_SLOT_INITIAL_NUM_ROWS;
+  }
+  clear();
+  LOG_WINDOW("Recycled CursorWindow %p, mSize = %d", this, mSize);
+  return true;
+}
+
 CursorWindow::~CursorWindow()
 {
   if(mData){
     free(mData);
   }
+  if(mRowSlots){
+    free(mRowSlots);
+  }
 }
 
 void CursorWindow::clear()
 {
     mHeader->numRows = 0;
     mHeader->numColumns = 0;
-    mFreeOffset = sizeof(window_header_t) + ROW_SLOT_CHUNK_SIZE;
-    // Mark the first chunk's next 'pointer' as null
-    *((uint32_t *)(mData + mFreeOffset - sizeof(uint32_t))) = 0;
-    mChunkNumToNextChunkOffset.clear();
-    mLastChunkPtrOffset = 0;
+    mFreeOffset = sizeof(window_header_t);
 }
 
 int32_t CursorWindow::freeSpace()
@@ -85,9 +115,6 @@ field_slot_t * CursorWindow::allocRow()
         return NULL;
     }
 
-    // Record the original offset of the rowSlot prior to allocation of the field directory
-    uint32_t rowSlotOffset = (uint8_t*)rowSlot - mData;
-
     // Allocate the slots for the field directory
     size_t fieldDirSize = mHeader->numColumns * sizeof(field_slot_t);
     uint32_t fieldDirOffset = alloc(fieldDirSize);
@@ -99,11 +126,9 @@ field_slot_t * CursorWindow::allocRow()
     field_slot_t * fieldDir = (field_slot_t *)offsetToPtr(fieldDirOffset);
     memset(fieldDir, 0x0, fieldDirSize);
 
-    // Reset the rowSlot pointer relative to mData
-    // If the last alloc relocated mData this will be rowSlot's new address, otherwise the value will not change
-    rowSlot = (row_slot_t*)(mData + rowSlotOffset);
-
-    LOG_WINDOW("Allocated row %u, rowSlot is at offset %u, fieldDir is %d bytes at offset %u\n", (mHeader->numRows - 1), ((uint8_t *)rowSlot) - mData, fieldDirSize, fieldDirOffset);
+    // The row slots live outside of mData, so rowSlot is still valid if the last alloc
+    // relocated mData
+    LOG_WINDOW("Allocated row %u, fieldDir is %d bytes at offset %u\n", (mHeader->numRows - 1), fieldDirSize, fieldDirOffset);
     rowSlot->offset = fieldDirOffset;
 
     return fieldDir;
@@ -141,73 +166,26 @@ uint32_t CursorWindow::alloc(size_t requestedSize, bool aligned)
     return offset;
 }
 
-row_slot_t * CursorWindow::getRowSlot(int row)
-{
-  LOG_WINDOW("getRowSlot entered: requesting row:%d, current row num:%d", row, mHeader->numRows);
-    unordered_map<int, uint32_t>::iterator result;
-    int chunkNum = row / ROW_SLOT_CHUNK_NUM_ROWS;
-    int chunkPos = row % ROW_SLOT_CHUNK_NUM_ROWS;
-    int chunkPtrOffset = sizeof(window_header_t) + ROW_SLOT_CHUNK_SIZE - sizeof(uint32_t);
-    uint8_t * rowChunk = mData + sizeof(window_header_t);
-
-    // check for chunkNum in cache
-    result = mChunkNumToNextChunkOffset.find(chunkNum);
-    if(result != mChunkNumToNextChunkOffset.end()){
-      rowChunk = offsetToPtr(result->second);
-      LOG_WINDOW("Retrieved chunk offset from cache for row:%d", row);
-      return (row_slot_t *)(rowChunk + (chunkPos * sizeof(row_slot_t)));
-    }
-
-    // walk the list, this shouldn't occur
-    LOG_WINDOW("getRowSlot walking list %d times to find rowslot for row:%d", chunkNum, row);
-    for (int i = 0; i < chunkNum; i++) {
-        rowChunk = offsetToPtr(*((uint32_t *)(mData + chunkPtrOffset)));
-        chunkPtrOffset = rowChunk - mData + (ROW_SLOT_CHUNK_NUM_ROWS * sizeof(row_slot_t));
-    }
-    return (row_slot_t *)(rowChunk + (chunkPos * sizeof(row_slot_t)));
-    LOG_WINDOW("exit getRowSlot current row num %d, this row %d", mHeader->numRows, row);
-}
-
 row_slot_t * CursorWindow::allocRowSlot()
 {
-    int chunkNum = mHeader->numRows / ROW_SLOT_CHUNK_NUM_ROWS;
-    int chunkPos = mHeader->numRows % ROW_SLOT_CHUNK_NUM_ROWS;
-    int chunkPtrOffset = sizeof(window_header_t) + ROW_SLOT_CHUNK_SIZE - sizeof(uint32_t);
-    uint8_t * rowChunk = mData + sizeof(window_header_t);
-    LOG_WINDOW("allocRowSlot entered: Allocating row slot, mHeader->numRows is %d, chunkNum is %d, chunkPos is %d",
-           mHeader->numRows, chunkNum, chunkPos);
-
-    if(mLastChunkPtrOffset != 0){
-      chunkPtrOffset = mLastChunkPtrOffset;
-    }
-    if(chunkNum > 0) {
-        uint32_t nextChunkOffset = *((uint32_t *)(mData + chunkPtrOffset));
-        LOG_WINDOW("nextChunkOffset is %d", nextChunkOffset);
-        if (nextChunkOffset == 0) {
-            mLastChunkPtrOffset = chunkPtrOffset;
-            // Allocate a new row chunk
-            nextChunkOffset = alloc(ROW_SLOT_CHUNK_SIZE, true);
-            mChunkNumToNextChunkOffset.insert(make_pair(chunkNum, nextChunkOffset));
-            if (nextChunkOffset == 0) {
-                return NULL;
-            }
-            rowChunk = offsetToPtr(nextChunkOffset);
-            LOG_WINDOW("allocated new chunk at %d, rowChunk = %p", nextChunkOffset, rowChunk);
-            *((uint32_t *)(mData + chunkPtrOffset)) = rowChunk - mData;
-            // Mark the new chunk's next 'pointer' as null
-            *((uint32_t *)(rowChunk + ROW_SLOT_CHUNK_SIZE - sizeof(uint32_t))) = 0;
-        } else {
-          LOG_WINDOW("follwing 'pointer' to next chunk, offset of next pointer is %d", chunkPtrOffset);
-            rowChunk = offsetToPtr(nextChunkOffset);
-            chunkPtrOffset = rowChunk - mData + (ROW_SLOT_CHUNK_NUM_ROWS * sizeof(row_slot_t));
-            if(chunkPos == ROW_SLOT_CHUNK_NUM_ROWS - 1){
-              // prepare to allocate new rowslot_t now at end of row
-              mLastChunkPtrOffset = chunkPtrOffset;
-            }
+    LOG_WINDOW("allocRowSlot entered: Allocating row slot, mHeader->numRows is %d, mRowSlotCapacity is %d",
+           mHeader->numRows, mRowSlotCapacity);
+    if (mHeader->numRows == mRowSlotCapacity) {
+        // Double the capacity of the row slot index
+        uint32_t newCapacity = mRowSlotCapacity * 2;
+        void *tempRowSlots = realloc((void *)mRowSlots, newCapacity * sizeof(row_slot_t));
+        if (tempRowSlots == NULL) {
+            LOGE("Failed to grow row slots from %d to %d rows", mRowSlotCapacity, newCapacity);
+            return NULL;
         }
+        mRowSlots = (row_slot_t *)tempRowSlots;
+        mRowSlotCapacity = newCapacity;
+        LOG_WINDOW("row slots grew to %d rows", newCapacity);
     }
+    row_slot_t * rowSlot = mRowSlots + mHeader->numRows;
+    rowSlot->offset = 0;
     mHeader->numRows++;
-    return (row_slot_t *)(rowChunk + (chunkPos * sizeof(row_slot_t)));
+    return rowSlot;
 }
 
 field_slot_t * CursorWindow::getFieldSlotWithCheck(int row, int column)
@@ -403,4 +381,155 @@ bool CursorWindow::getNull(unsigned int row, unsigned int col, bool * valueOut)
     return true;
 }
 
+/**
+ * Decodes the UTF-8 sequence starting at src[i] into codePoint, and returns the number of
+ * bytes it takes. A sequence that is truncated, has a bad continuation byte, is overlong,
+ * encodes a surrogate or is beyond U+10FFFF, as well as a byte that can't start a
+ * sequence, decodes to U+FFFD and takes one byte, so that the bytes after it are decoded
+ * on their own.
+ */
+static inline size_t decode_utf8(uint8_t const * src, size_t len, size_t i, uint32_t * codePoint)
+{
+    uint8_t c = src[i];
+    if (c < 0x80) {
+        *codePoint = c;
+        return 1;
+    }
+    uint32_t value;
+    uint32_t min;
+    size_t extra;
+    if ((c & 0xE0) == 0xC0) {
+        value = c & 0x1F;
+        min = 0x80;
+        extra = 1;
+    } else if ((c & 0xF0) == 0xE0) {
+        value = c & 0x0F;
+        min = 0x800;
+        extra = 2;
+    } else if ((c & 0xF8) == 0xF0) {
+        value = c & 0x07;
+        min = 0x10000;
+        extra = 3;
+    } else {
+        *codePoint = 0xFFFD;
+        return 1;
+    }
+    if (extra >= len - i) {
+        *codePoint = 0xFFFD;
+        return 1;
+    }
+    for (size_t j = 1; j <= extra; j++) {
+        uint8_t next = src[i + j];
+        if ((next & 0xC0) != 0x80) {
+            *codePoint = 0xFFFD;
+            return 1;
+        }
+        value = (value << 6) | (next & 0x3F);
+    }
+    if (value < min || value > 0x10FFFF || (value >= 0xD800 && value <= 0xDFFF)) {
+        *codePoint = 0xFFFD;
+        return 1;
+    }
+    *codePoint = value;
+    return extra + 1;
+}
+
+size_t utf8_to_utf16_length(uint8_t const * src, size_t len)
+{
+    size_t count = 0;
+    size_t i = 0;
+    while (i < len) {
+        if (src[i] < 0x80) {
+            i++;
+            count++;
+            continue;
+        }
+        uint32_t codePoint;
+        i += decode_utf8(src, len, i, &codePoint);
+        // outside the BMP needs a surrogate pair
+        count += codePoint >= 0x10000 ? 2 : 1;
+    }
+    return count;
+}
+
+size_t utf8_to_utf16(uint8_t const * src, size_t len, uint16_t * dst)
+{
+    uint16_t * start = dst;
+    size_t i = 0;
+    while (i < len) {
+        if (src[i] < 0x80) {
+            *dst++ = src[i++];
+            continue;
+        }
+        uint32_t codePoint;
+        i += decode_utf8(src, len, i, &codePoint);
+        if (codePoint >= 0x10000) {
+            codePoint -= 0x10000;
+            *dst++ = (uint16_t)(0xD800 + (codePoint >> 10));
+            *dst++ = (uint16_t)(0xDC00 + (codePoint & 0x3FF));
+        } else {
+            *dst++ = (uint16_t)codePoint;
+        }
+    }
+    return dst - start;
+}
+
+/**
+ * Returns the code point of the UTF-16 sequence starting at src[i], and sets units to
+ * the number of code units it takes. An unpaired surrogate is U+FFFD.
+ */
+static inline uint32_t decode_utf16(uint16_t const * src, size_t len, size_t i, size_t * units)
+{
+    uint16_t c = src[i];
+    *units = 1;
+    if (c < 0xD800 || c > 0xDFFF) {
+        return c;
+    }
+    if (c <= 0xDBFF && i + 1 < len && src[i + 1] >= 0xDC00 && src[i + 1] <= 0xDFFF) {
+        *units = 2;
+        return 0x10000 + (((uint32_t)(c - 0xD800) << 10) | (src[i + 1] - 0xDC00));
+    }
+    return 0xFFFD;
+}
+
+size_t utf16_to_utf8_length(uint16_t const * src, size_t len)
+{
+    size_t count = 0;
+    size_t i = 0;
+    while (i < len) {
+        size_t units;
+        uint32_t codePoint = decode_utf16(src, len, i, &units);
+        i += units;
+        count += codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+    }
+    return count;
+}
+
+size_t utf16_to_utf8(uint16_t const * src, size_t len, uint8_t * dst)
+{
+    uint8_t * start = dst;
+    size_t i = 0;
+    while (i < len) {
+        size_t units;
+        uint32_t codePoint = decode_utf16(src, len, i, &units);
+        i += units;
+        if (codePoint < 0x80) {
+            *dst++ = (uint8_t)codePoint;
+        } else if (codePoint < 0x800) {
+            *dst++ = (uint8_t)(0xC0 | (codePoint >> 6));
+            *dst++ = (uint8_t)(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            *dst++ = (uint8_t)(0xE0 | (codePoint >> 12));
+            *dst++ = (uint8_t)(0x80 | ((codePoint >> 6) & 0x3F));
+            *dst++ = (uint8_t)(0x80 | (codePoint & 0x3F));
+        } else {
+            *dst++ = (uint8_t)(0xF0 | (codePoint >> 18));
+            *dst++ = (uint8_t)(0x80 | ((codePoint >> 12) & 0x3F));
+            *dst++ = (uint8_t)(0x80 | ((codePoint >> 6) & 0x3F));
+            *dst++ = (uint8_t)(0x80 | (codePoint & 0x3F));
+        }
+    }
+    return dst - start;
+}
+
 }; // namespace sqlcipher
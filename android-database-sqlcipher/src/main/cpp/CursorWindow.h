@@ -24,17 +24,12 @@
 #include <stdint.h>
 #include <jni.h>
 #include "log.h"
-#include <unordered_map>
 
-#define ROW_SLOT_CHUNK_NUM_ROWS 128
+#define ROW_SLOT_INITIAL_NUM_ROWS 128
 #define INITIAL_WINDOW_SIZE (1024 * 1024)
 #define GROW_WINDOW_SIZE_EXTRA INITIAL_WINDOW_SIZE
 #define WINDOW_ALLOCATION_UNBOUNDED 0
 
-// Row slots are allocated in chunks of ROW_SLOT_CHUNK_NUM_ROWS,
-// with an offset after the rows that points to the next chunk
-#define ROW_SLOT_CHUNK_SIZE ((ROW_SLOT_CHUNK_NUM_ROWS * sizeof(row_slot_t)) + sizeof(uint32_t))
-
 #if LOG_NDEBUG
 
 #define IF_LOG_WINDOW() if (false)
@@ -47,16 +42,10 @@
 
 #endif
 
-// When defined to true strings are stored as UTF8, otherwise they're UTF16
-#define WINDOW_STORAGE_UTF8 0
-
 // When defined to true numberic values are stored inline in the field_slot_t,
 // otherwise they're allocated in the window
 #define WINDOW_STORAGE_INLINE_NUMERICS 1
 
-using std::make_pair;
-using std::unordered_map;
-
 namespace sqlcipher {
 
 typedef struct
@@ -90,11 +79,36 @@ typedef struct
 #define FIELD_TYPE_NULL 0
 
 /**
- * This class stores a set of rows from a database in a buffer. The begining of the
- * window has first chunk of row_slot_ts, which are offsets to the row directory, followed by
- * an offset to the next chunk in a linked-list of additional chunk of row_slot_ts in case
- * the pre-allocated chunk isn't big enough to refer to all rows. Each row directory has a
- * field_slot_t per column, which has the size, offset, and type of the data for that field.
+ * Returns the number of UTF-16 code units in the UTF-8 string src of len bytes.
+ */
+size_t utf8_to_utf16_length(uint8_t const * src, size_t len);
+
+/**
+ * Decodes the UTF-8 string src of len bytes into dst, which must have room for
+ * utf8_to_utf16_length(src, len) code units, and returns the number written. Malformed
+ * sequences, including overlong forms, surrogates and code points beyond U+10FFFF,
+ * decode to U+FFFD one byte at a time.
+ */
+size_t utf8_to_utf16(uint8_t const * src, size_t len, uint16_t * dst);
+
+/**
+ * Returns the number of bytes the UTF-16 string src of len code units takes as UTF-8.
+ */
+size_t utf16_to_utf8_length(uint16_t const * src, size_t len);
+
+/**
+ * Encodes the UTF-16 string src of len code units into dst as standard UTF-8, which must
+ * have room for utf16_to_utf8_length(src, len) bytes, and returns the number written.
+ * Unpaired surrogates encode as U+FFFD.
+ */
+size_t utf16_to_utf8(uint16_t const * src, size_t len, uint8_t * dst);
+
+/**
+ * This class stores a set of rows from a database in a buffer. The rows are indexed by
+ * a contiguous array of row_slot_ts kept alongside the buffer, which are offsets to the
+ * row directory, so finding a row is a single array access. The array doubles in size
+ * when it runs out of slots. Each row directory has a field_slot_t per column, which has
+ * the size, offset, and type of the data for that field.
  * Note that the data types come from sqlite3.h.
  */
 class CursorWindow
@@ -105,6 +119,33 @@ public:
                         ~CursorWindow();
 
     bool                initBuffer(bool localOnly);
+
+                        /**
+                         * When true, string fields are stored as NUL terminated
+                         * UTF-8 and their size includes the terminator; otherwise
+                         * they're stored as UTF-16 without a terminator.
+                         */
+    bool                isUtf8Strings() {return mUtf8Strings;}
+    void                setUtf8Strings(bool utf8) {mUtf8Strings = utf8;}
+
+                        /**
+                         * Zero the bytes in use, clear the window and shrink its
+                         * buffers back to their initial sizes so it can be reused for
+                         * a new cursor.
+                         * Returns false if the buffers couldn't be shrunk.
+                         */
+    bool                recycle();
+
+                        /**
+                         * Returns true if this window was created with the given
+                         * allocation sizes.
+                         */
+    bool                hasAllocation(size_t initialSize, size_t growthPaddingSize, size_t maxSize)
+                            {
+                                return mInitialSize == initialSize &&
+                                       mGrowthPaddingSize == growthPaddingSize &&
+                                       mMaxSize == maxSize;
+                            }
     size_t              size() {return mSize;}
     uint8_t *           data() {return mData;}
     uint32_t            getNumRows() {return mHeader->numRows;}
@@ -169,7 +210,7 @@ public:
 
     row_slot_t *        allocRowSlot();
 
-    row_slot_t *        getRowSlot(int row);
+    row_slot_t *        getRowSlot(int row) {return mRowSlots + row;}
 
                         /**
                          * return NULL if Failed to find rowSlot or
@@ -182,6 +223,27 @@ public:
                                 return ((field_slot_t *)offsetToPtr(fieldDirOffset)) + column;
                             }
 
+                        /**
+                         * Read the value of an INTEGER or FLOAT field slot without
+                         * checking its type.
+                         */
+    int64_t             getFieldLong(field_slot_t * fieldSlot)
+                            {
+#if WINDOW_STORAGE_INLINE_NUMERICS
+                                return fieldSlot->data.l;
+#else
+                                return copyOutLong(fieldSlot->data.buffer.offset);
+#endif
+                            }
+    double              getFieldDouble(field_slot_t * fieldSlot)
+                            {
+#if WINDOW_STORAGE_INLINE_NUMERICS
+                                return fieldSlot->data.d;
+#else
+                                return copyOutDouble(fieldSlot->data.buffer.offset);
+#endif
+                            }
+
 private:
     uint8_t * mData;
     size_t mSize;
@@ -193,8 +255,12 @@ private:
      * Offset of the lowest unused data byte in the array.
      */
     uint32_t mFreeOffset;
-    unordered_map<int, uint32_t> mChunkNumToNextChunkOffset;
-    int mLastChunkPtrOffset;
+    /**
+     * Contiguous index of row slots, one per row, and the number of rows it can hold.
+     */
+    row_slot_t * mRowSlots;
+    uint32_t mRowSlotCapacity;
+    bool mUtf8Strings;
 };
 
 }; // namespace sqlcipher
@@ -18,6 +18,7 @@
 #define LOG_TAG "CursorWindow"
 
 #include <jni.h>
+#include <pthread.h>
 #include <stdlib.h>
 #include <stdio.h>
 #include <string.h>
@@ -45,6 +46,67 @@ namespace sqlcipher {
 #define SET_BUFFER(env, object, buf) (env->SetObjectField(object, gBufferField, buf))
 #define SET_SIZE_COPIED(env, object, size) (env->SetIntField(object, gSizeCopiedField, size))
 
+// Upper bound on the number of closed windows kept for reuse, whatever the allocation asks for
+#define MAX_WINDOW_POOL_SIZE 16
+
+  // Process-wide pool of closed, cleared windows. gWindowPoolLimit is the limit of the
+  // CursorWindowAllocation the most recent window was created with.
+  static pthread_mutex_t gWindowPoolMutex = PTHREAD_MUTEX_INITIALIZER;
+  static CursorWindow * gWindowPool[MAX_WINDOW_POOL_SIZE];
+  static int gWindowPoolCount = 0;
+  static int gWindowPoolLimit = 0;
+
+  /**
+   * Takes a pooled window created with the given allocation sizes, or returns NULL.
+   * Pooled windows that no longer match the allocation or the limit are deleted.
+   */
+  static CursorWindow * take_pooled_window(size_t initialSize, size_t growthPaddingSize,
+                                           size_t maxSize, int maxPooledWindows)
+  {
+    CursorWindow * window = NULL;
+    CursorWindow * stale[MAX_WINDOW_POOL_SIZE];
+    int numStale = 0;
+
+    pthread_mutex_lock(&gWindowPoolMutex);
+    gWindowPoolLimit = maxPooledWindows < 0 ? 0 :
+      (maxPooledWindows > MAX_WINDOW_POOL_SIZE ? MAX_WINDOW_POOL_SIZE : maxPooledWindows);
+    while (gWindowPoolCount > 0 && window == NULL) {
+      CursorWindow * candidate = gWindowPool[--gWindowPoolCount];
+      if (candidate->hasAllocation(initialSize, growthPaddingSize, maxSize)) {
+        window = candidate;
+      } else {
+        stale[numStale++] = candidate;
+      }
+    }
+    while (gWindowPoolCount > gWindowPoolLimit) {
+      stale[numStale++] = gWindowPool[--gWindowPoolCount];
+    }
+    pthread_mutex_unlock(&gWindowPoolMutex);
+
+    for (int i = 0; i < numStale; i++) {
+      delete stale[i];
+    }
+    return window;
+  }
+
+  /**
+   * Returns a closed window to the pool, or deletes it if the pool is full.
+   */
+  static void release_window(CursorWindow * window)
+  {
+    if (window->recycle()) {
+      pthread_mutex_lock(&gWindowPoolMutex);
+      if (gWindowPoolCount < gWindowPoolLimit) {
+        gWindowPool[gWindowPoolCount++] = window;
+        window = NULL;
+      }
+      pthread_mutex_unlock(&gWindowPoolMutex);
+    }
+    if (window) {
+      delete window;
+    }
+  }
+
   CursorWindow * get_window_from_object(JNIEnv * env, jobject javaWindow)
   {
     return GET_WINDOW(env, javaWindow);
@@ -52,12 +114,21 @@ namespace sqlcipher {
 
   static void native_init_empty(JNIEnv * env, jobject object,
                                 jboolean localOnly, jlong initialSize,
-                                jlong growthPaddingSize, jlong maxSize)
+                                jlong growthPaddingSize, jlong maxSize,
+                                jint maxPooledWindows, jboolean utf8Strings)
   {
     uint8_t * data;
     size_t size;
     CursorWindow * window;
 
+    window = take_pooled_window(initialSize, growthPaddingSize, maxSize, maxPooledWindows);
+    if (window) {
+      LOG_WINDOW("native_init_empty: reusing pooled window = %p", window);
+      window->setUtf8Strings(utf8Strings);
+      SET_WINDOW(env, object, window);
+      return;
+    }
+
     window = new CursorWindow(initialSize, growthPaddingSize, maxSize);
     if (!window) {
       jniThrowException(env, "java/lang/RuntimeException", "No memory for native window object");
@@ -69,6 +140,7 @@ namespace sqlcipher {
       delete window;
       return;
     }
+    window->setUtf8Strings(utf8Strings);
     LOG_WINDOW("native_init_empty: window = %p", window);
     SET_WINDOW(env, object, window);
   }
@@ -89,8 +161,8 @@ namespace sqlcipher {
     CursorWindow * window = GET_WINDOW(env, object);
     if (window) {
       LOG_WINDOW("Closing window %p", window);
-      delete window;
       SET_WINDOW(env, object, 0);
+      release_window(window);
     }
   }
 
@@ -108,6 +180,78 @@ namespace sqlcipher {
     jniThrowException(env, "net/sqlcipher/UnknownTypeException", buf);
   }
 
+  /**
+   * Creates a java string from a FIELD_TYPE_STRING field, decoding it if the window
+   * stores strings as UTF-8.
+   */
+  static jstring newStringFromField(JNIEnv * env, CursorWindow * window, field_slot_t * field)
+  {
+    uint8_t const * data = window->offsetToPtr(field->data.buffer.offset);
+    uint32_t size = field->data.buffer.size;
+    if (!window->isUtf8Strings()) {
+      return env->NewString((const jchar *)data, (jsize)size / sizeof(jchar));
+    }
+    // don't decode the NUL terminator
+    if (size > 0) {
+      size--;
+    }
+    jchar stackBuffer[256];
+    size_t length = utf8_to_utf16_length(data, size);
+    jchar * chars = length <= 256 ? stackBuffer : (jchar *)malloc(length * sizeof(jchar));
+    if (chars == NULL) {
+      jniThrowException(env, "java/lang/OutOfMemoryError", "Unable to decode string");
+      return NULL;
+    }
+    utf8_to_utf16(data, size, chars);
+    jstring result = env->NewString(chars, (jsize)length);
+    if (chars != stackBuffer) {
+      free(chars);
+    }
+    return result;
+  }
+
+  /**
+   * Parses a FIELD_TYPE_STRING field with strtoll, as getLong() does.
+   */
+  static jlong stringFieldToLong(JNIEnv * env, CursorWindow * window, field_slot_t * field)
+  {
+    uint32_t size = field->data.buffer.size;
+    if (size == 0) {
+      return 0;
+    }
+    if (window->isUtf8Strings()) {
+      return strtoll((const char *)window->offsetToPtr(field->data.buffer.offset), NULL, 0);
+    }
+    long long int result;
+    jstring data = env->NewString((const jchar*)window->offsetToPtr(field->data.buffer.offset), (jsize)size / sizeof(jchar));
+    const char* utf8data = env->GetStringUTFChars(data, NULL);
+    result = strtoll(utf8data, NULL, 0);
+    if(utf8data) env->ReleaseStringUTFChars(data, utf8data);
+    if(data) env->DeleteLocalRef(data);
+    return result;
+  }
+
+  /**
+   * Parses a FIELD_TYPE_STRING field with strtod, as getDouble() does.
+   */
+  static jdouble stringFieldToDouble(JNIEnv * env, CursorWindow * window, field_slot_t * field)
+  {
+    uint32_t size = field->data.buffer.size;
+    if (size == 0) {
+      return 0.0;
+    }
+    if (window->isUtf8Strings()) {
+      return strtod((const char *)window->offsetToPtr(field->data.buffer.offset), NULL);
+    }
+    double result;
+    jstring data = env->NewString((const jchar*)window->offsetToPtr(field->data.buffer.offset), (jsize)size / sizeof(jchar));
+    const char* utf8data = env->GetStringUTFChars(data, NULL);
+    result = strtod(utf8data, NULL);
+    if(utf8data) env->ReleaseStringUTFChars(data, utf8data);
+    if(data) env->DeleteLocalRef(data);
+    return result;
+  }
+
   static jlong getLong_native(JNIEnv * env, jobject object, jint row, jint column)
   {
     int32_t err;
@@ -129,18 +273,7 @@ namespace sqlcipher {
       }
       return 0;
     } else if (type == FIELD_TYPE_STRING) {
-      uint32_t size = field.data.buffer.size;
-      if (size > 0) {
-        long long int result;
-        jstring data = env->NewString((const jchar*)window->offsetToPtr(field.data.buffer.offset), (jsize)size / sizeof(jchar));
-        const char* utf8data = env->GetStringUTFChars(data, NULL);
-        result = strtoll(utf8data, NULL, 0);
-        if(utf8data) env->ReleaseStringUTFChars(data, utf8data);
-        if(data) env->DeleteLocalRef(data);
-        return result;
-      } else {
-        return 0;
-      }
+      return stringFieldToLong(env, window, &field);
     } else if (type == FIELD_TYPE_FLOAT) {
       double value;
       if (window->getDouble(row, column, &value)) {
@@ -280,7 +413,7 @@ namespace sqlcipher {
       throw_sqlite3_exception(env, "Unable to convert BLOB to string");
       return NULL;
     } else if (type == FIELD_TYPE_STRING) {
-      return env->NewString((const jchar*)window->offsetToPtr(field.data.buffer.offset), (jsize)size / sizeof(jchar));
+      return newStringFromField(env, window, &field);
     } else if (type == FIELD_TYPE_INTEGER) {
       int64_t value;
       if (window->getLong(row, column, &value)) {
@@ -339,7 +472,29 @@ namespace sqlcipher {
     uint8_t type = field.type;
     uint32_t sizeCopied = 0;
     jcharArray newArray = NULL;
-    if (type == FIELD_TYPE_STRING) {
+    if (type == FIELD_TYPE_STRING && window->isUtf8Strings()) {
+      uint32_t size = field.data.buffer.size;
+      if (size > 1) {
+        uint8_t const * data = window->offsetToPtr(field.data.buffer.offset);
+        jsize length = (jsize)utf8_to_utf16_length(data, size - 1);
+        if (length > bufferSize || dst == NULL) {
+          jchar * chars = (jchar *)malloc(length * sizeof(jchar));
+          if (chars != NULL) {
+            utf8_to_utf16(data, size - 1, chars);
+            newArray = env->NewCharArray(length);
+            if (newArray != NULL) {
+              env->SetCharArrayRegion(newArray, 0, length, chars);
+            }
+            free(chars);
+          } else {
+            jniThrowException(env, "java/lang/OutOfMemoryError", "Unable to decode string");
+          }
+        } else {
+          utf8_to_utf16(data, size - 1, dst);
+        }
+        sizeCopied = length;
+      }
+    } else if (type == FIELD_TYPE_STRING) {
       uint32_t size = field.data.buffer.size;
       if (size > 0) {
         jsize length = (jsize)size/sizeof(jchar);
@@ -429,18 +584,7 @@ namespace sqlcipher {
       }
       return 0.0;
     } else if (type == FIELD_TYPE_STRING) {
-      uint32_t size = field.data.buffer.size;
-      if (size > 0) {
-        double result;
-        jstring data = env->NewString((const jchar*)window->offsetToPtr(field.data.buffer.offset), (jsize)size / sizeof(jchar));
-        const char* utf8data = env->GetStringUTFChars(data, NULL);
-        result = strtod(utf8data, NULL);
-        if(utf8data) env->ReleaseStringUTFChars(data, utf8data);
-        if(data) env->DeleteLocalRef(data);
-        return result;
-      } else {
-        return 0.0;
-      }
+      return stringFieldToDouble(env, window, &field);
     } else if (type == FIELD_TYPE_INTEGER) {
       int64_t value;
       if (window->getLong(row, column, &value)) {
@@ -470,6 +614,225 @@ namespace sqlcipher {
     return true;
   }
 
+  static jint copyField_native(JNIEnv * env, jobject object, jint row, jint column,
+                               jobject dst, jint position, jint remaining)
+  {
+    int32_t err;
+    CursorWindow * window = GET_WINDOW(env, object);
+    LOG_WINDOW("Copying field %d,%d from %p", row, column, window);
+
+    field_slot_t field;
+    err = window->read_field_slot(row, column, &field);
+    if (err != 0) {
+      throwExceptionWithRowCol(env, row, column);
+      return -1;
+    }
+
+    uint8_t type = field.type;
+    if (type == FIELD_TYPE_BLOB || type == FIELD_TYPE_STRING) {
+      jint size = field.data.buffer.size;
+      // the caller throws BufferOverflowException when the field doesn't fit
+      if (dst != NULL && size <= remaining) {
+        uint8_t * address = (uint8_t *)env->GetDirectBufferAddress(dst);
+        if (address == NULL) {
+          jniThrowException(env, "java/lang/IllegalArgumentException", "buffer is not direct");
+          return -1;
+        }
+        memcpy(address + position, window->offsetToPtr(field.data.buffer.offset), size);
+      }
+      return size;
+    } else if (type == FIELD_TYPE_NULL) {
+      return -1;
+    } else if (type == FIELD_TYPE_INTEGER) {
+      throw_sqlite3_exception(env, "INTEGER data in copyField_native ");
+    } else if (type == FIELD_TYPE_FLOAT) {
+      throw_sqlite3_exception(env, "FLOAT data in copyField_native ");
+    } else {
+      throwUnknowTypeException(env, type);
+    }
+    return -1;
+  }
+
+  /**
+   * Checks that rows [row, row + count) of column are in the window, throwing if not.
+   */
+  static bool checkColumnRange(JNIEnv * env, CursorWindow * window, jint row, jint column, jint count)
+  {
+    if (row < 0 || count < 0 || column < 0 ||
+        (uint32_t)row + (uint32_t)count > window->getNumRows() ||
+        (uint32_t)column >= window->getNumColumns()) {
+      char buf[100];
+      snprintf(buf, sizeof(buf), "rows %d to %d of col %d are not in the window", row, row + count, column);
+      jniThrowException(env, "net/sqlcipher/InvalidRowColumnException", buf);
+      return false;
+    }
+    return true;
+  }
+
+  static inline void setNullBit(jlong * nullBits, jint index, bool isNull)
+  {
+    if (isNull) {
+      nullBits[index >> 6] |= (1LL << (index & 63));
+    } else {
+      nullBits[index >> 6] &= ~(1LL << (index & 63));
+    }
+  }
+
+  static jint getLongs_native(JNIEnv * env, jobject object, jint row, jint column,
+                              jlongArray values, jint count, jlongArray nullBitsArray)
+  {
+    CursorWindow * window = GET_WINDOW(env, object);
+    if (!checkColumnRange(env, window, row, column, count)) {
+      return 0;
+    }
+    jlong * out = env->GetLongArrayElements(values, NULL);
+    jlong * nullBits = nullBitsArray ? env->GetLongArrayElements(nullBitsArray, NULL) : NULL;
+    jint i;
+    for (i = 0; i < count; i++) {
+      field_slot_t * field = window->getFieldSlot(row + i, column);
+      uint8_t type = field->type;
+      if (type == FIELD_TYPE_INTEGER) {
+        out[i] = window->getFieldLong(field);
+      } else if (type == FIELD_TYPE_FLOAT) {
+        out[i] = (jlong)window->getFieldDouble(field);
+      } else if (type == FIELD_TYPE_STRING) {
+        out[i] = stringFieldToLong(env, window, field);
+      } else if (type == FIELD_TYPE_NULL) {
+        out[i] = 0;
+      } else if (type == FIELD_TYPE_BLOB) {
+        throw_sqlite3_exception(env, "Unable to convert BLOB to long");
+        break;
+      } else {
+        throwUnknowTypeException(env, type);
+        break;
+      }
+      if (nullBits) {
+        setNullBit(nullBits, i, type == FIELD_TYPE_NULL);
+      }
+    }
+    if (nullBits) {
+      env->ReleaseLongArrayElements(nullBitsArray, nullBits, 0);
+    }
+    env->ReleaseLongArrayElements(values, out, 0);
+    return i;
+  }
+
+  static jint getDoubles_native(JNIEnv * env, jobject object, jint row, jint column,
+                                jdoubleArray values, jint count, jlongArray nullBitsArray)
+  {
+    CursorWindow * window = GET_WINDOW(env, object);
+    if (!checkColumnRange(env, window, row, column, count)) {
+      return 0;
+    }
+    jdouble * out = env->GetDoubleArrayElements(values, NULL);
+    jlong * nullBits = nullBitsArray ? env->GetLongArrayElements(nullBitsArray, NULL) : NULL;
+    jint i;
+    for (i = 0; i < count; i++) {
+      field_slot_t * field = window->getFieldSlot(row + i, column);
+      uint8_t type = field->type;
+      if (type == FIELD_TYPE_FLOAT) {
+        out[i] = window->getFieldDouble(field);
+      } else if (type == FIELD_TYPE_INTEGER) {
+        out[i] = (jdouble)window->getFieldLong(field);
+      } else if (type == FIELD_TYPE_STRING) {
+        out[i] = stringFieldToDouble(env, window, field);
+      } else if (type == FIELD_TYPE_NULL) {
+        out[i] = 0.0;
+      } else if (type == FIELD_TYPE_BLOB) {
+        throw_sqlite3_exception(env, "Unable to convert BLOB to double");
+        break;
+      } else {
+        throwUnknowTypeException(env, type);
+        break;
+      }
+      if (nullBits) {
+        setNullBit(nullBits, i, type == FIELD_TYPE_NULL);
+      }
+    }
+    if (nullBits) {
+      env->ReleaseLongArrayElements(nullBitsArray, nullBits, 0);
+    }
+    env->ReleaseDoubleArrayElements(values, out, 0);
+    return i;
+  }
+
+  static jint getStrings_native(JNIEnv * env, jobject object, jint row, jint column,
+                                jobjectArray values, jint count)
+  {
+    CursorWindow * window = GET_WINDOW(env, object);
+    if (!checkColumnRange(env, window, row, column, count)) {
+      return 0;
+    }
+    jint i;
+    for (i = 0; i < count; i++) {
+      field_slot_t * field = window->getFieldSlot(row + i, column);
+      uint8_t type = field->type;
+      jstring value = NULL;
+      if (type == FIELD_TYPE_STRING) {
+        value = newStringFromField(env, window, field);
+      } else if (type == FIELD_TYPE_INTEGER) {
+        char buf[32];
+        snprintf(buf, sizeof(buf), "%" PRId64 "", window->getFieldLong(field));
+        value = env->NewStringUTF(buf);
+      } else if (type == FIELD_TYPE_FLOAT) {
+        char buf[32];
+        snprintf(buf, sizeof(buf), "%g", window->getFieldDouble(field));
+        value = env->NewStringUTF(buf);
+      } else if (type == FIELD_TYPE_BLOB) {
+        throw_sqlite3_exception(env, "Unable to convert BLOB to string");
+        break;
+      } else if (type != FIELD_TYPE_NULL) {
+        throwUnknowTypeException(env, type);
+        break;
+      }
+      if (env->ExceptionCheck()) {
+        break;
+      }
+      env->SetObjectArrayElement(values, i, value);
+      if (value) {
+        env->DeleteLocalRef(value);
+      }
+    }
+    return i;
+  }
+
+  static jint getBlobs_native(JNIEnv * env, jobject object, jint row, jint column,
+                              jobjectArray values, jint count)
+  {
+    CursorWindow * window = GET_WINDOW(env, object);
+    if (!checkColumnRange(env, window, row, column, count)) {
+      return 0;
+    }
+    jint i;
+    for (i = 0; i < count; i++) {
+      field_slot_t * field = window->getFieldSlot(row + i, column);
+      uint8_t type = field->type;
+      jbyteArray value = NULL;
+      if (type == FIELD_TYPE_BLOB || type == FIELD_TYPE_STRING) {
+        value = env->NewByteArray(field->data.buffer.size);
+        if (value == NULL) {
+          break;
+        }
+        env->SetByteArrayRegion(value, 0, field->data.buffer.size,
+                                (const jbyte*)window->offsetToPtr(field->data.buffer.offset));
+      } else if (type == FIELD_TYPE_INTEGER) {
+        throw_sqlite3_exception(env, "INTEGER data in getBlobs_native ");
+        break;
+      } else if (type == FIELD_TYPE_FLOAT) {
+        throw_sqlite3_exception(env, "FLOAT data in getBlobs_native ");
+        break;
+      } else if (type != FIELD_TYPE_NULL) {
+        throwUnknowTypeException(env, type);
+        break;
+      }
+      env->SetObjectArrayElement(values, i, value);
+      if (value) {
+        env->DeleteLocalRef(value);
+      }
+    }
+    return i;
+  }
+
   static jint getNumRows(JNIEnv * env, jobject object)
   {
     CursorWindow * window = GET_WINDOW(env, object);
@@ -533,32 +896,35 @@ namespace sqlcipher {
       return false;
     }
 
-#if WINDOW_STORAGE_UTF8
-    int len = env->GetStringUTFLength(value) + 1;
-    char const * valStr = env->GetStringUTFChars(value, NULL);
-#else
-    int len = env->GetStringLength(value);
-    // GetStringLength return number of chars and one char takes 2 bytes
-    len *= 2;
-    const jchar* valStr = env->GetStringChars(value, NULL);
-#endif
+    bool utf8 = window->isUtf8Strings();
+    jsize chars = env->GetStringLength(value);
+    jchar const * valStr = env->GetStringChars(value, NULL);
     if (!valStr) {
       LOG_WINDOW("value can't be transfer to UTFChars");
       return false;
     }
+    int len;
+    if (utf8) {
+      // standard UTF-8 rather than the JNI's modified UTF-8, which the decoder rejects
+      len = utf16_to_utf8_length(valStr, chars) + 1;
+    } else {
+      // one char takes 2 bytes
+      len = chars * 2;
+    }
 
     int offset = window->alloc(len);
     if (!offset) {
       LOG_WINDOW("Failed allocating %u bytes", len);
-#if WINDOW_STORAGE_UTF8
-      env->ReleaseStringUTFChars(value, valStr);
-#else
       env->ReleaseStringChars(value, valStr);
-#endif
       return false;
     }
 
-    window->copyIn(offset, (uint8_t const *)valStr, len);
+    if (utf8) {
+      uint8_t * dst = window->offsetToPtr(offset);
+      dst[utf16_to_utf8(valStr, chars, dst)] = 0;
+    } else {
+      window->copyIn(offset, (uint8_t const *)valStr, len);
+    }
 
     // This must be updated after the call to alloc(), since that
     // may move the field around in the window
@@ -567,11 +933,7 @@ namespace sqlcipher {
     fieldSlot->data.buffer.size = len;
 
     LOG_WINDOW("%d,%d is TEXT with %u bytes @ %d", row, col, len, offset);
-#if WINDOW_STORAGE_UTF8
-    env->ReleaseStringUTFChars(value, valStr);
-#else
     env->ReleaseStringChars(value, valStr);
-#endif
 
     return true;
   }
@@ -618,13 +980,18 @@ namespace sqlcipher {
   static JNINativeMethod sMethods[] =
     {
       /* name, signature, funcPtr */
-      {"native_init", "(ZJJJ)V", (void *)native_init_empty},
+      {"native_init", "(ZJJJIZ)V", (void *)native_init_empty},
       // {"native_init", "(Landroid/os/IBinder;)V", (void *)native_init_memory},
       // {"native_getBinder", "()Landroid/os/IBinder;", (void *)native_getBinder},
       {"native_clear", "()V", (void *)native_clear},
       {"close_native", "()V", (void *)native_close},
       {"getLong_native", "(II)J", (void *)getLong_native},
       {"getBlob_native", "(II)[B", (void *)getBlob_native},
+      {"getLongs_native", "(II[JI[J)I", (void *)getLongs_native},
+      {"getDoubles_native", "(II[DI[J)I", (void *)getDoubles_native},
+      {"getStrings_native", "(II[Ljava/lang/String;I)I", (void *)getStrings_native},
+      {"getBlobs_native", "(II[[BI)I", (void *)getBlobs_native},
+      {"copyField_native", "(IILjava/nio/ByteBuffer;II)I", (void *)copyField_native},
       {"isBlob_native", "(II)Z", (void *)isBlob_native},
       {"getString_native", "(II)Ljava/lang/String;", (void *)getString_native},
       //{"getString_native", "(II)[B", (void *)getString_native},
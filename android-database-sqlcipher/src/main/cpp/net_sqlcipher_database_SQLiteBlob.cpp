@@ -0,0 +1,176 @@
+#undef LOG_TAG
+#define LOG_TAG "Database"
+
+#include <jni.h>
+#include <sqlite3.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "log.h"
+#include "jni_elements.h"
+#include "jni_exception.h"
+#include "sqlite3_exception.h"
+
+/* the bytes copied between sqlite and the Java heap at a time, on the stack */
+#define BLOB_CHUNK_SIZE 8192
+
+namespace sqlcipher {
+
+static jfieldID gHandleField;
+static jfieldID gBlobField;
+
+#define GET_HANDLE(env, object) \
+        (sqlite3 *)env->GetLongField(object, gHandleField)
+#define GET_BLOB(env, object) \
+        (sqlite3_blob *)env->GetLongField(object, gBlobField)
+
+static sqlite3_blob * get_open_blob(JNIEnv* env, jobject object)
+{
+    sqlite3_blob * blob = GET_BLOB(env, object);
+    if (blob == NULL) {
+        jniThrowException(env, "java/lang/IllegalStateException", "blob is closed");
+    }
+    return blob;
+}
+
+/* native void native_open(String database, String table, String column, long rowId, boolean writable); */
+static void native_open(JNIEnv* env, jobject object, jstring databaseString, jstring tableString,
+                        jstring columnString, jlong rowId, jboolean writable)
+{
+    int err;
+    sqlite3 * handle = GET_HANDLE(env, object);
+    sqlite3_blob * blob = NULL;
+    char const * database = env->GetStringUTFChars(databaseString, NULL);
+    char const * table = env->GetStringUTFChars(tableString, NULL);
+    char const * column = env->GetStringUTFChars(columnString, NULL);
+
+    err = sqlite3_blob_open(handle, database, table, column, rowId, writable ? 1 : 0, &blob);
+
+    env->ReleaseStringUTFChars(databaseString, database);
+    env->ReleaseStringUTFChars(tableString, table);
+    env->ReleaseStringUTFChars(columnString, column);
+
+    if (err != SQLITE_OK) {
+        sqlite3_blob_close(blob);
+        throw_sqlite3_exception_errcode(env, err, sqlite3_errmsg(handle));
+        return;
+    }
+    env->SetLongField(object, gBlobField, (intptr_t)blob);
+}
+
+/* native void native_reopen(long rowId); */
+static void native_reopen(JNIEnv* env, jobject object, jlong rowId)
+{
+    int err;
+    sqlite3_blob * blob = get_open_blob(env, object);
+    if (blob == NULL) return;
+
+    err = sqlite3_blob_reopen(blob, rowId);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception_errcode(env, err, sqlite3_errmsg(GET_HANDLE(env, object)));
+    }
+}
+
+/* native int native_bytes(); */
+static jint native_bytes(JNIEnv* env, jobject object)
+{
+    sqlite3_blob * blob = get_open_blob(env, object);
+    if (blob == NULL) return 0;
+
+    return sqlite3_blob_bytes(blob);
+}
+
+/* native void native_read(byte[] buffer, int offset, int length, int blobOffset); */
+static void native_read(JNIEnv* env, jobject object, jbyteArray buffer, jint offset,
+                        jint length, jint blobOffset)
+{
+    int err;
+    jbyte chunk[BLOB_CHUNK_SIZE];
+    sqlite3_blob * blob = get_open_blob(env, object);
+    if (blob == NULL) return;
+
+    // go through a small buffer on the stack rather than pinning the array, which
+    // could stall the garbage collector while sqlite reads and decrypts pages
+    while (length > 0) {
+        int size = length < BLOB_CHUNK_SIZE ? length : BLOB_CHUNK_SIZE;
+        err = sqlite3_blob_read(blob, chunk, size, blobOffset);
+        if (err != SQLITE_OK) {
+            throw_sqlite3_exception_errcode(env, err, sqlite3_errmsg(GET_HANDLE(env, object)));
+            return;
+        }
+        env->SetByteArrayRegion(buffer, offset, size, chunk);
+        if (env->ExceptionCheck()) return;
+        offset += size;
+        blobOffset += size;
+        length -= size;
+    }
+}
+
+/* native void native_write(byte[] buffer, int offset, int length, int blobOffset); */
+static void native_write(JNIEnv* env, jobject object, jbyteArray buffer, jint offset,
+                         jint length, jint blobOffset)
+{
+    int err;
+    jbyte chunk[BLOB_CHUNK_SIZE];
+    sqlite3_blob * blob = get_open_blob(env, object);
+    if (blob == NULL) return;
+
+    while (length > 0) {
+        int size = length < BLOB_CHUNK_SIZE ? length : BLOB_CHUNK_SIZE;
+        env->GetByteArrayRegion(buffer, offset, size, chunk);
+        if (env->ExceptionCheck()) return;
+        err = sqlite3_blob_write(blob, chunk, size, blobOffset);
+        if (err != SQLITE_OK) {
+            throw_sqlite3_exception_errcode(env, err, sqlite3_errmsg(GET_HANDLE(env, object)));
+            return;
+        }
+        offset += size;
+        blobOffset += size;
+        length -= size;
+    }
+}
+
+/* native void native_close(); */
+static void native_close(JNIEnv* env, jobject object)
+{
+    sqlite3_blob * blob = GET_BLOB(env, object);
+
+    if (blob != NULL) {
+        sqlite3_blob_close(blob);
+        env->SetLongField(object, gBlobField, 0);
+    }
+}
+
+static JNINativeMethod sMethods[] =
+{
+     /* name, signature, funcPtr */
+    {"native_open", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;JZ)V", (void *)native_open},
+    {"native_reopen", "(J)V", (void *)native_reopen},
+    {"native_bytes", "()I", (void *)native_bytes},
+    {"native_read", "([BIII)V", (void *)native_read},
+    {"native_write", "([BIII)V", (void *)native_write},
+    {"native_close", "()V", (void *)native_close},
+};
+
+int register_android_database_SQLiteBlob(JNIEnv * env)
+{
+    jclass clazz;
+
+    clazz = env->FindClass("net/sqlcipher/database/SQLiteBlob");
+    if (clazz == NULL) {
+        LOGE("Can't find net/sqlcipher/database/SQLiteBlob");
+        return -1;
+    }
+
+    gHandleField = env->GetFieldID(clazz, "nHandle", "J");
+    gBlobField = env->GetFieldID(clazz, "nBlob", "J");
+
+    if (gHandleField == NULL || gBlobField == NULL) {
+        LOGE("Error locating fields");
+        return -1;
+    }
+    return env->RegisterNatives(clazz, sMethods, NELEM(sMethods));
+}
+
+} // namespace sqlcipher
@@ -115,6 +115,20 @@ namespace sqlcipher {
     if(key) env->ReleaseByteArrayElements(jKey, key, JNI_ABORT);
   }
 
+  void native_key_raw(JNIEnv* env, jobject object, jobject jKey, jint size) {
+    int rc = 0;
+    sqlite3 *handle = (sqlite3 *)env->GetLongField(object, offset_db_handle);
+    void *key = env->GetDirectBufferAddress(jKey);
+    if(key == NULL || size <= 0 || size > env->GetDirectBufferCapacity(jKey)) {
+      jniThrowException(env, "java/lang/IllegalArgumentException", "invalid raw key buffer");
+      return;
+    }
+    rc = sqlite3_key(handle, key, size);
+    if(rc != SQLITE_OK) {
+      throw_sqlite3_exception(env, handle);
+    }
+  }
+
   void native_rekey(JNIEnv* env, jobject object, jbyteArray jKey) {
     int rc = 0;
     jsize size = 0;
@@ -269,29 +283,321 @@ namespace sqlcipher {
     return dbNameStr;
   }
 
-  static void sqlTrace(void *databaseName, const char *sql) {
-    LOGI("sql_statement|%s|%s\n", (char *)databaseName, sql);
+  /* the most statements whose trace events are sampled at the same time */
+  #define MAX_SAMPLED_STATEMENTS 16
+
+  /*
+   * The trace state of a connection, registered with sqlite3_trace_v2 and shared by
+   * the logcat tracing and profiling of SQLiteDebug and the SQLiteTraceListener.
+   */
+  typedef struct {
+    char * databaseName;
+    bool logStatements;
+    bool logTimes;
+    JavaVM * vm;
+    jobject listener;
+    jmethodID onStatementStart;
+    jmethodID onStatementProfile;
+    jmethodID onStatementRow;
+    unsigned listenerEvents;
+    /* a statement is sampled if the next random number is below this, 2^32 samples all */
+    uint64_t sampleThreshold;
+    uint32_t random;
+    sqlite3_stmt * sampled[MAX_SAMPLED_STATEMENTS];
+  } trace_context_t;
+
+  static jfieldID offset_trace_context;
+
+  static trace_context_t * get_trace_context(JNIEnv* env, jobject object, bool create) {
+    trace_context_t * trace = (trace_context_t *)env->GetLongField(object, offset_trace_context);
+    if (trace == NULL && create) {
+      trace = (trace_context_t *)calloc(1, sizeof(trace_context_t));
+      if (trace == NULL) {
+        jniThrowException(env, "java/lang/OutOfMemoryError", "Unable to allocate trace state");
+        return NULL;
+      }
+      trace->random = 0x9e3779b9;
+      env->SetLongField(object, offset_trace_context, (intptr_t)trace);
+    }
+    return trace;
+  }
+
+  static bool is_sampled(trace_context_t * trace, sqlite3_stmt * statement, bool remove) {
+    for (int i = 0; i < MAX_SAMPLED_STATEMENTS; i++) {
+      if (trace->sampled[i] == statement) {
+        if (remove) trace->sampled[i] = NULL;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static void sample(trace_context_t * trace, sqlite3_stmt * statement) {
+    // xorshift32, the connection lock serializes the callbacks of a connection
+    uint32_t x = trace->random;
+    x ^= x << 13;
+    x ^= x >> 17;
+    x ^= x << 5;
+    trace->random = x;
+    if (x >= trace->sampleThreshold) return;
+    for (int i = 0; i < MAX_SAMPLED_STATEMENTS; i++) {
+      if (trace->sampled[i] == NULL) {
+        trace->sampled[i] = statement;
+        return;
+      }
+    }
+  }
+
+  static bool is_identifier_char(char c) {
+    return isalnum((unsigned char)c) || c == '_' || c == '$';
+  }
+
+  /*
+   * Returns true for the statements that set a key, PRAGMA key, PRAGMA rekey and their
+   * variants such as hexkey, and ATTACH ... KEY, whose SQL holds the key as a literal.
+   * Matches SQLiteMetrics.isKeyStatement.
+   */
+  static bool is_key_statement(const char * sql) {
+    while (isspace((unsigned char)*sql)) sql++;
+    if (sqlite3_strnicmp(sql, "ATTACH", 6) == 0) {
+      for (const char * p = sql + 6; *p != '\0'; p++) {
+        if (sqlite3_strnicmp(p, "KEY", 3) == 0 && !is_identifier_char(p[-1]) &&
+            !is_identifier_char(p[3])) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (sqlite3_strnicmp(sql, "PRAGMA", 6) != 0) return false;
+    // the pragma name, after an optional schema name
+    const char * p = sql + 6;
+    const char * nameEnd = p;
+    while (*p != '\0') {
+      if (isspace((unsigned char)*p) || *p == '.' || *p == '"' || *p == '`' || *p == '[' ||
+          *p == ']') {
+        p++;
+      } else if (isalnum((unsigned char)*p) || *p == '_') {
+        while (isalnum((unsigned char)*p) || *p == '_') p++;
+        nameEnd = p;
+      } else {
+        break;
+      }
+    }
+    return nameEnd - sql >= 9 && sqlite3_strnicmp(nameEnd - 3, "KEY", 3) == 0;
+  }
+
+  /* stands in for the SQL of key statements in the log */
+  #define REDACTED_SQL "<key statement redacted>"
+
+  static void callListener(trace_context_t * trace, jmethodID method, sqlite3_stmt * statement,
+                           const char * sql, jlong nanos) {
+    JNIEnv * env;
+    if (trace->vm->GetEnv((void **)&env, JNI_VERSION_1_4) != JNI_OK) return;
+    if (method == trace->onStatementRow) {
+      env->CallVoidMethod(trace->listener, method, (jlong)(intptr_t)statement);
+    } else {
+      jstring sqlString = env->NewStringUTF(sql);
+      if (sqlString == NULL) {
+        env->ExceptionClear();
+        return;
+      }
+      if (method == trace->onStatementStart) {
+        env->CallVoidMethod(trace->listener, method, (jlong)(intptr_t)statement, sqlString);
+      } else {
+        env->CallVoidMethod(trace->listener, method, (jlong)(intptr_t)statement, sqlString, nanos);
+      }
+      env->DeleteLocalRef(sqlString);
+    }
+    if (env->ExceptionCheck()) {
+      // the statement is running, don't let the exception escape into it
+      LOGE("SQLiteTraceListener threw an exception, ignoring it");
+      env->ExceptionDescribe();
+      env->ExceptionClear();
+    }
+  }
+
+  static int traceCallback(unsigned type, void * context, void * p, void * x) {
+    trace_context_t * trace = (trace_context_t *)context;
+    sqlite3_stmt * statement = (sqlite3_stmt *)p;
+    if (type == SQLITE_TRACE_STMT) {
+      const char * sql = (const char *)x;
+      // triggers report their name as a "--" comment for the statement firing them
+      bool trigger = sql[0] == '-' && sql[1] == '-';
+      // key statements are neither logged nor sampled, so their key is never copied
+      bool secret = !trigger && is_key_statement(sql);
+      if (trace->logStatements) {
+        char * expanded = trigger || secret ? NULL : sqlite3_expanded_sql(statement);
+        LOGI("sql_statement|%s|%s\n", trace->databaseName,
+             expanded != NULL ? expanded : (secret ? REDACTED_SQL : sql));
+        sqlite3_free(expanded);
+      }
+      if (trace->listener != NULL && !trigger && !secret && !is_sampled(trace, statement, false)) {
+        sample(trace, statement);
+        if ((trace->listenerEvents & SQLITE_TRACE_STMT) && is_sampled(trace, statement, false)) {
+          callListener(trace, trace->onStatementStart, statement, sqlite3_sql(statement), 0);
+        }
+      }
+    } else if (type == SQLITE_TRACE_PROFILE) {
+      sqlite3_int64 nanos = *(sqlite3_int64 *)x;
+      if (trace->logTimes) {
+        const char * sql = sqlite3_sql(statement);
+        LOGI("elapsedTime4Sql|%s|%.3f ms|%s\n", trace->databaseName, nanos / 1000000.0,
+             sql != NULL && is_key_statement(sql) ? REDACTED_SQL : sql);
+      }
+      if (trace->listener != NULL && is_sampled(trace, statement, true) &&
+          (trace->listenerEvents & SQLITE_TRACE_PROFILE)) {
+        callListener(trace, trace->onStatementProfile, statement, sqlite3_sql(statement), nanos);
+      }
+    } else if (type == SQLITE_TRACE_ROW) {
+      if (trace->listener != NULL && is_sampled(trace, statement, false)) {
+        callListener(trace, trace->onStatementRow, statement, NULL, 0);
+      }
+    }
+    return 0;
+  }
+
+  /* registers traceCallback for the events the trace state needs */
+  static void updateTrace(sqlite3 * handle, trace_context_t * trace) {
+    unsigned mask = 0;
+    if (trace->logStatements) mask |= SQLITE_TRACE_STMT;
+    if (trace->logTimes) mask |= SQLITE_TRACE_PROFILE;
+    if (trace->listener != NULL) {
+      // sampling starts at the statement event and ends at the profile event
+      mask |= SQLITE_TRACE_STMT | SQLITE_TRACE_PROFILE | (trace->listenerEvents & SQLITE_TRACE_ROW);
+    }
+    sqlite3_trace_v2(handle, mask, mask != 0 ? &traceCallback : NULL, mask != 0 ? trace : NULL);
   }
 
   /* public native void enableSqlTracing(); */
   static void enableSqlTracing(JNIEnv* env, jobject object, jstring databaseName)
   {
     sqlite3 * handle = (sqlite3 *)env->GetLongField(object, offset_db_handle);
-    sqlite3_trace(handle, &sqlTrace, (void *)getDatabaseName(env, handle, databaseName));
-  }
-
-  static void sqlProfile(void *databaseName, const char *sql, sqlite3_uint64 tm) {
-    double d = tm/1000000.0;
-    LOGI("elapsedTime4Sql|%s|%.3f ms|%s\n", (char *)databaseName, d, sql);
+    trace_context_t * trace = get_trace_context(env, object, true);
+    if (trace == NULL) return;
+    if (trace->databaseName == NULL) {
+      trace->databaseName = getDatabaseName(env, handle, databaseName);
+    }
+    trace->logStatements = true;
+    updateTrace(handle, trace);
   }
 
   /* public native void enableSqlProfiling(); */
   static void enableSqlProfiling(JNIEnv* env, jobject object, jstring databaseName)
   {
     sqlite3 * handle = (sqlite3 *)env->GetLongField(object, offset_db_handle);
-    sqlite3_profile(handle, &sqlProfile, (void *)getDatabaseName(env, handle, databaseName));
+    trace_context_t * trace = get_trace_context(env, object, true);
+    if (trace == NULL) return;
+    if (trace->databaseName == NULL) {
+      trace->databaseName = getDatabaseName(env, handle, databaseName);
+    }
+    trace->logTimes = true;
+    updateTrace(handle, trace);
   }
 
+  /* native void native_setTraceListener(SQLiteTraceListener listener, int events, double sampleRate); */
+  static void native_setTraceListener(JNIEnv* env, jobject object, jobject listener,
+                                      jint events, jdouble sampleRate)
+  {
+    sqlite3 * handle = (sqlite3 *)env->GetLongField(object, offset_db_handle);
+    trace_context_t * trace = get_trace_context(env, object, listener != NULL);
+    if (trace == NULL) return;
+    if (trace->listener != NULL) {
+      env->DeleteGlobalRef(trace->listener);
+      trace->listener = NULL;
+    }
+    memset(trace->sampled, 0, sizeof(trace->sampled));
+    if (listener != NULL) {
+      jclass clazz = env->GetObjectClass(listener);
+      trace->onStatementStart = env->GetMethodID(clazz, "onStatementStart", "(JLjava/lang/String;)V");
+      trace->onStatementProfile = env->GetMethodID(clazz, "onStatementProfile", "(JLjava/lang/String;J)V");
+      trace->onStatementRow = env->GetMethodID(clazz, "onStatementRow", "(J)V");
+      env->DeleteLocalRef(clazz);
+      if (trace->onStatementStart == NULL || trace->onStatementProfile == NULL ||
+          trace->onStatementRow == NULL) {
+        return; // NoSuchMethodError is pending
+      }
+      env->GetJavaVM(&trace->vm);
+      trace->listener = env->NewGlobalRef(listener);
+      trace->listenerEvents = events;
+      trace->sampleThreshold = sampleRate >= 1.0 ? 0x100000000ull
+        : (uint64_t)(sampleRate * 4294967296.0);
+    }
+    updateTrace(handle, trace);
+  }
+
+  /* releases the trace state of a connection that is about to be closed */
+  static void releaseTrace(JNIEnv* env, jobject object, sqlite3 * handle) {
+    trace_context_t * trace = get_trace_context(env, object, false);
+    if (trace == NULL) return;
+    sqlite3_trace_v2(handle, 0, NULL, NULL);
+    if (trace->listener != NULL) {
+      env->DeleteGlobalRef(trace->listener);
+    }
+    free(trace->databaseName);
+    free(trace);
+    env->SetLongField(object, offset_trace_context, 0);
+  }
+
+  /*
+   * The cancellation state of a connection. Unlike sqlite3_interrupt, whose flag stays
+   * set while any statement of the connection is active, such as the statement a
+   * streaming cursor keeps positioned between fills, the progress handler only aborts
+   * the statement being stepped, and the flag is cleared whenever cancellation is
+   * attached or detached.
+   */
+  typedef struct {
+    volatile int canceled;
+  } cancel_context_t;
+
+  static jfieldID offset_cancel_context;
+
+  /* the number of virtual machine instructions between checks of the cancel flag */
+  #define CANCEL_CHECK_INSTRUCTIONS 4
+
+  static int cancelProgressCallback(void * context) {
+    return ((cancel_context_t *)context)->canceled;
+  }
+
+  /* native void native_resetCancel(boolean cancelable); */
+  static void native_resetCancel(JNIEnv* env, jobject object, jboolean cancelable)
+  {
+    sqlite3 * handle = (sqlite3 *)env->GetLongField(object, offset_db_handle);
+    cancel_context_t * cancel = (cancel_context_t *)env->GetLongField(object, offset_cancel_context);
+    if (handle == NULL) return;
+    if (cancel == NULL) {
+      if (!cancelable) return;
+      cancel = (cancel_context_t *)calloc(1, sizeof(cancel_context_t));
+      if (cancel == NULL) {
+        jniThrowException(env, "java/lang/OutOfMemoryError", "Unable to allocate cancel state");
+        return;
+      }
+      env->SetLongField(object, offset_cancel_context, (intptr_t)cancel);
+    }
+    cancel->canceled = 0;
+    if (cancelable) {
+      sqlite3_progress_handler(handle, CANCEL_CHECK_INSTRUCTIONS, &cancelProgressCallback, cancel);
+    } else {
+      sqlite3_progress_handler(handle, 0, NULL, NULL);
+    }
+  }
+
+  /* native void native_cancel(); */
+  static void native_cancel(JNIEnv* env, jobject object)
+  {
+    cancel_context_t * cancel = (cancel_context_t *)env->GetLongField(object, offset_cancel_context);
+    if (cancel != NULL) {
+      cancel->canceled = 1;
+    }
+  }
+
+  /* releases the cancellation state of a connection that is about to be closed */
+  static void releaseCancel(JNIEnv* env, jobject object, sqlite3 * handle) {
+    cancel_context_t * cancel = (cancel_context_t *)env->GetLongField(object, offset_cancel_context);
+    if (cancel == NULL) return;
+    sqlite3_progress_handler(handle, 0, NULL, NULL);
+    free(cancel);
+    env->SetLongField(object, offset_cancel_context, 0);
+  }
 
   /* public native void close(); */
   static void dbclose(JNIEnv* env, jobject object)
@@ -299,16 +605,9 @@ namespace sqlcipher {
     sqlite3 * handle = (sqlite3 *)env->GetLongField(object, offset_db_handle);
 
     if (handle != NULL) {
-      // release the memory associated with the traceFuncArg in enableSqlTracing function
-      void *traceFuncArg = sqlite3_trace(handle, &sqlTrace, NULL);
-      if (traceFuncArg != NULL) {
-        free(traceFuncArg);
-      }
-      // release the memory associated with the traceFuncArg in enableSqlProfiling function
-      traceFuncArg = sqlite3_profile(handle, &sqlProfile, NULL);
-      if (traceFuncArg != NULL) {
-        free(traceFuncArg);
-      }
+      // release the state of enableSqlTracing, enableSqlProfiling and the trace listener
+      releaseTrace(env, object, handle);
+      releaseCancel(env, object, handle);
       LOGV("Closing database: handle=%p\n", handle);
       int result = sqlite3_close(handle);
       if (result == SQLITE_OK) {
@@ -539,8 +838,13 @@ namespace sqlcipher {
       {"releaseMemory", "()I", (void *)native_releaseMemory},
       {"native_rawExecSQL", "(Ljava/lang/String;)V", (void *)native_rawExecSQL},
       {"native_status", "(IZ)I", (void *)native_status},
+      {"native_resetCancel", "(Z)V", (void *)native_resetCancel},
+      {"native_cancel", "()V", (void *)native_cancel},
+      {"native_setTraceListener", "(Lnet/sqlcipher/database/SQLiteTraceListener;ID)V",
+       (void *)native_setTraceListener},
       {"key_mutf8", "([C)V", (void *)native_key_mutf8},
       {"key", "([B)V", (void *)native_key},
+      {"key_raw", "(Ljava/nio/ByteBuffer;I)V", (void *)native_key_raw},
       {"rekey", "([B)V", (void *)native_rekey},
     };
 
@@ -559,6 +863,18 @@ namespace sqlcipher {
       LOGE("Can't find SQLiteDatabase.mNativeHandle\n");
       return -1;
     }
+
+    offset_trace_context = env->GetFieldID(clazz, "mNativeTraceContext", "J");
+    if (offset_trace_context == NULL) {
+      LOGE("Can't find SQLiteDatabase.mNativeTraceContext\n");
+      return -1;
+    }
+
+    offset_cancel_context = env->GetFieldID(clazz, "mNativeCancelContext", "J");
+    if (offset_cancel_context == NULL) {
+      LOGE("Can't find SQLiteDatabase.mNativeCancelContext\n");
+      return -1;
+    }
     return env->RegisterNatives(clazz, sMethods, NELEM(sMethods));
   }
 
@@ -580,6 +896,7 @@ namespace sqlcipher {
     register_android_database_SQLiteQuery(env);
     register_android_database_SQLiteProgram(env);
     register_android_database_SQLiteStatement(env);
+    register_android_database_SQLiteBlob(env);
     register_android_database_CursorWindow(env);
 
     //register_android_database_SQLiteDebug(env);
@@ -665,6 +982,9 @@ namespace sqlcipher {
     case SQLITE_MISUSE:
       exceptionClass = "android/database/sqlite/SQLiteMisuseException";
       break;
+    case SQLITE_INTERRUPT:
+      exceptionClass = "android/os/OperationCanceledException";
+      break;
     default:
       exceptionClass = "android/database/sqlite/SQLiteException";
       break;
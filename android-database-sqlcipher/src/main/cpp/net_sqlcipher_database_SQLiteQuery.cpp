@@ -41,6 +41,7 @@ sqlite3_stmt * compile(JNIEnv* env, jobject object,
 
 static jfieldID gHandleField;
 static jfieldID gStatementField;
+static jfieldID gResumePositionField;
 
 
 #define GET_STATEMENT(env, object) \
@@ -75,7 +76,12 @@ static int skip_rows(sqlite3_stmt *statement, int maxRows) {
     return maxRows;
 }
 
-static int finish_program_and_get_row_count(sqlite3_stmt *statement) {
+/**
+ * Steps the statement over its remaining rows, counting them, and resets it. If the
+ * statement is cancelled, see SQLiteDatabase.native_cancel, the matching exception is thrown and
+ * the rows counted until then are returned.
+ */
+static int finish_program_and_get_row_count(JNIEnv* env, jobject object, sqlite3_stmt *statement) {
     int numRows = 0;
     int retryCount = 0;
     while (true) {
@@ -93,6 +99,10 @@ static int finish_program_and_get_row_count(sqlite3_stmt *statement) {
             usleep(1000);
             retryCount++;
             continue;
+        } else if (err == SQLITE_INTERRUPT) {
+            // the caller cancelled the query, throw before the reset clears the error
+            throw_sqlite3_exception(env, GET_HANDLE(env, object));
+            break;
         } else {
             // no need to throw exception
             break;
@@ -103,13 +113,25 @@ static int finish_program_and_get_row_count(sqlite3_stmt *statement) {
     return numRows;
 }
 
+/**
+ * Fills the window with rows starting at startPos. The statement is stepped over
+ * skipRows rows first; if rowPending is true the current row of the statement (left
+ * there by a previous call) has not been consumed yet and is counted as the first of
+ * those rows. When the window fills up and countAllRows is false, the remaining rows are
+ * not counted: the statement is left on the row that did not fit, its position is stored
+ * in mResumePosition and startPos + numRows + 1 is returned. When countAllRows is false
+ * maxRead also limits windows that don't start at 0, and reaching it steps one row ahead
+ * so that the statement is left the same way, or is finished if there are no more rows.
+ */
 static jint native_fill_window(JNIEnv* env, jobject object, jobject javaWindow,
                                jint startPos, jint requiredPos,
-                               jint offsetParam, jint maxRead, jint lastPos)
+                               jint offsetParam, jint maxRead, jint lastPos,
+                               jint skipRows, jboolean rowPending, jboolean countAllRows)
 {
     int err;
     sqlite3_stmt * statement = GET_STATEMENT(env, object);
     int numRows = lastPos;
+    bool pending = rowPending;
     maxRead += lastPos;
     int numColumns;
     int retryCount;
@@ -157,19 +179,30 @@ static jint native_fill_window(JNIEnv* env, jobject object, jobject javaWindow,
     }
 
     retryCount = 0;
-    if (startPos > 0) {
-        int num = skip_rows(statement, startPos);
+    if (skipRows > 0) {
+        int num = skip_rows(statement, skipRows);
         if (num < 0) {
             throw_sqlite3_exception(env, GET_HANDLE(env, object));
             return 0;
-        } else if (num < startPos) {
-            LOGE("startPos %d > actual rows %d", startPos, num);
-            return num;
+        } else if (num < skipRows) {
+            // the rows before the skipped ones, plus the pending row if there was one
+            int actualRows = startPos - skipRows + num + (pending ? 1 : 0);
+            LOGE("startPos %d > actual rows %d", startPos, actualRows);
+            if (pending) {
+                sqlite3_reset(statement);
+            }
+            return actualRows;
         }
     }
 
-    while(startPos != 0 || numRows < maxRead) {
-        err = sqlite3_step(statement);
+    while((startPos != 0 && countAllRows) || numRows < maxRead) {
+        if (pending) {
+            // the statement is already on this row
+            err = SQLITE_ROW;
+            pending = false;
+        } else {
+            err = sqlite3_step(statement);
+        }
         if (err == SQLITE_ROW) {
             LOG_WINDOW("\nStepped statement %p to row %d", statement, startPos + numRows);
             retryCount = 0;
@@ -188,7 +221,11 @@ static jint native_fill_window(JNIEnv* env, jobject object, jobject javaWindow,
                 }
                 if (!fieldDir) {
                     LOGE("Failed allocating fieldDir at startPos %d row %d", startPos, numRows);
-                    return startPos + numRows + finish_program_and_get_row_count(statement) + 1;
+                    if (!countAllRows) {
+                        env->SetIntField(object, gResumePositionField, startPos + numRows);
+                        return startPos + numRows + 1;
+                    }
+                    return startPos + numRows + finish_program_and_get_row_count(env, object, statement) + 1;
                 }
             }
 
@@ -218,7 +255,11 @@ static jint native_fill_window(JNIEnv* env, jobject object, jobject javaWindow,
                   } else {
                     LOG_WINDOW("Bailing from reset, requested row %d already mapped in cursor window\n",
                                startPos + numRows);
-                    return startPos + numRows + finish_program_and_get_row_count(statement) + 1;
+                    if (!countAllRows) {
+                        env->SetIntField(object, gResumePositionField, startPos + numRows);
+                        return startPos + numRows + 1;
+                    }
+                    return startPos + numRows + finish_program_and_get_row_count(env, object, statement) + 1;
                   }
                   failed = true;
                   reset = false;
@@ -226,9 +267,16 @@ static jint native_fill_window(JNIEnv* env, jobject object, jobject javaWindow,
 
                 int type = sqlite3_column_type(statement, i);
                 if (type == SQLITE_TEXT) {
-                    // TEXT data
-                    uint8_t const * text = (uint8_t const *)sqlite3_column_text16(statement, i);
-                    size_t size = sqlite3_column_bytes16(statement, i);
+                    // TEXT data, stored NUL terminated when the window holds UTF-8
+                    uint8_t const * text;
+                    size_t size;
+                    if (window->isUtf8Strings()) {
+                        text = (uint8_t const *)sqlite3_column_text(statement, i);
+                        size = sqlite3_column_bytes(statement, i) + 1;
+                    } else {
+                        text = (uint8_t const *)sqlite3_column_text16(statement, i);
+                        size = sqlite3_column_bytes16(statement, i);
+                    }
                     int offset = window->alloc(size);
                     if (!offset) {
                         window->freeLastRow();
@@ -336,6 +384,16 @@ static jint native_fill_window(JNIEnv* env, jobject object, jobject javaWindow,
     LOG_WINDOW("Resetting statement %p after fetching %d rows in %d bytes\n\n\n\n", statement,
             numRows, window->size() - window->freeSpace());
 //    LOGI("Filled window with %d rows in %d bytes", numRows, window->size() - window->freeSpace());
+    if (err == SQLITE_ROW && !countAllRows && !env->ExceptionCheck()) {
+        // stopped at maxRead, look ahead to find out if there are more rows
+        err = sqlite3_step(statement);
+        if (err == SQLITE_ROW) {
+            env->SetIntField(object, gResumePositionField, startPos + numRows);
+            return startPos + numRows + 1;
+        } else if (err != SQLITE_DONE) {
+            throw_sqlite3_exception(env, GET_HANDLE(env, object));
+        }
+    }
     if (err == SQLITE_ROW) {
         return -1;
     } else {
@@ -344,6 +402,32 @@ static jint native_fill_window(JNIEnv* env, jobject object, jobject javaWindow,
     }
 }
 
+static void native_reset(JNIEnv* env, jobject object)
+{
+    sqlite3_stmt * statement = GET_STATEMENT(env, object);
+
+    if (statement != NULL) {
+        sqlite3_reset(statement);
+    }
+}
+
+/**
+ * Steps the statement over all of its remaining rows without reading them and returns
+ * their number, plus one if rowPending is true and the statement is on a row a previous
+ * fill left unconsumed. The statement is reset afterwards.
+ */
+static jint native_count_rows(JNIEnv* env, jobject object, jboolean rowPending)
+{
+    sqlite3_stmt * statement = GET_STATEMENT(env, object);
+
+    if (statement == NULL) {
+        jniThrowException(env, "java/lang/IllegalStateException",
+                          "Attempting to access a deactivated, closed, or empty cursor");
+        return 0;
+    }
+    return finish_program_and_get_row_count(env, object, statement) + (rowPending ? 1 : 0);
+}
+
 static jint native_column_count(JNIEnv* env, jobject object)
 {
     sqlite3_stmt * statement = GET_STATEMENT(env, object);
@@ -365,7 +449,9 @@ static jstring native_column_name(JNIEnv* env, jobject object, jint columnIndex)
 static JNINativeMethod sMethods[] =
 {
      /* name, signature, funcPtr */
-    {"native_fill_window", "(Lnet/sqlcipher/CursorWindow;IIIII)I", (void *)native_fill_window},
+    {"native_fill_window", "(Lnet/sqlcipher/CursorWindow;IIIIIIZZ)I", (void *)native_fill_window},
+    {"native_reset", "()V", (void *)native_reset},
+    {"native_count_rows", "(Z)I", (void *)native_count_rows},
     {"native_column_count", "()I", (void*)native_column_count},
     {"native_column_name", "(I)Ljava/lang/String;", (void *)native_column_name},
 };
@@ -383,8 +469,9 @@ int register_android_database_SQLiteQuery(JNIEnv * env)
 
     gHandleField = env->GetFieldID(clazz, "nHandle", "J");
     gStatementField = env->GetFieldID(clazz, "nStatement", "J");
+    gResumePositionField = env->GetFieldID(clazz, "mResumePosition", "I");
 
-    if (gHandleField == NULL || gStatementField == NULL) {
+    if (gHandleField == NULL || gStatementField == NULL || gResumePositionField == NULL) {
         LOGE("Error locating fields");
         return -1;
     }
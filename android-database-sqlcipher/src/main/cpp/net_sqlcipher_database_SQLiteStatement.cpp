@@ -21,11 +21,18 @@
 #include <jni.h>
 #include <sqlite3.h>
 #include <stdio.h>
+#include <stdlib.h>
 #include <string.h>
 #include <unistd.h>
+#include <dlfcn.h>
+#include <fcntl.h>
+#include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <linux/ashmem.h>
 
 #include "log.h"
 #include "jni_elements.h"
+#include "jni_exception.h"
 #include "sqlite3_exception.h"
 
 namespace sqlcipher {
@@ -37,12 +44,24 @@ sqlite3_stmt * compile(JNIEnv* env, jobject object,
 static jfieldID gHandleField;
 static jfieldID gStatementField;
 
+/* ASharedMemory of libandroid, API 26 and later, looked up at registration */
+typedef int (*ASharedMemory_create_func)(const char *name, size_t size);
+typedef int (*ASharedMemory_setProt_func)(int fd, int prot);
+static ASharedMemory_create_func gSharedMemoryCreate;
+static ASharedMemory_setProt_func gSharedMemorySetProt;
+
 
 #define GET_STATEMENT(env, object) \
         (sqlite3_stmt *)env->GetLongField(object, gStatementField)
 #define GET_HANDLE(env, object) \
         (sqlite3 *)env->GetLongField(object, gHandleField)
 
+// Column types of native_execute_batch, must match SQLiteStatement.BATCH_COLUMN_*
+#define BATCH_COLUMN_LONG 0
+#define BATCH_COLUMN_DOUBLE 1
+#define BATCH_COLUMN_STRING 2
+#define BATCH_COLUMN_BLOB 3
+
 
 static void native_execute(JNIEnv* env, jobject object)
 {
@@ -60,7 +79,7 @@ static void native_execute(JNIEnv* env, jobject object)
                                       sqlite3_errmsg(handle));
     }
 
-    // Reset the statment so it's ready to use again
+    // Reset the statement so it's ready to use again
     sqlite3_reset(statement);
 }
 
@@ -82,7 +101,7 @@ static jlong native_1x1_long(JNIEnv* env, jobject object)
         throw_sqlite3_exception_errcode(env, err, sqlite3_errmsg(handle));
     }
 
-    // Reset the statment so it's ready to use again
+    // Reset the statement so it's ready to use again
     sqlite3_reset(statement);
 
     return value;
@@ -112,12 +131,233 @@ static jstring native_1x1_string(JNIEnv* env, jobject object)
         throw_sqlite3_exception_errcode(env, err, sqlite3_errmsg(handle));
     }
 
-    // Reset the statment so it's ready to use again
+    // Reset the statement so it's ready to use again
     sqlite3_reset(statement);
 
     return value;
 }
 
+/* creates a shared memory region, through /dev/ashmem before ASharedMemory existed */
+static int create_shared_memory(const char * name, size_t size)
+{
+    if (gSharedMemoryCreate != NULL) {
+        return gSharedMemoryCreate(name, size);
+    }
+    int fd = open("/dev/ashmem", O_RDWR | O_CLOEXEC);
+    if (fd < 0) {
+        return -1;
+    }
+    char buf[ASHMEM_NAME_LEN];
+    strncpy(buf, name, sizeof(buf) - 1);
+    buf[sizeof(buf) - 1] = 0;
+    if (ioctl(fd, ASHMEM_SET_NAME, buf) < 0 || ioctl(fd, ASHMEM_SET_SIZE, size) < 0) {
+        close(fd);
+        return -1;
+    }
+    return fd;
+}
+
+static int protect_shared_memory(int fd, int prot)
+{
+    if (gSharedMemorySetProt != NULL) {
+        return gSharedMemorySetProt(fd, prot);
+    }
+    return ioctl(fd, ASHMEM_SET_PROT_MASK, prot);
+}
+
+/**
+ * Runs a statement returning a 1 by 1 table with a blob value and copies the value
+ * straight from sqlite into a new read-only shared memory region. Returns the file
+ * descriptor of the region, owned by the caller, and stores the length of the value in
+ * length[0], or returns -1 if there is no row or the value is NULL.
+ */
+static jint native_1x1_blob_fd(JNIEnv* env, jobject object, jintArray lengthOut)
+{
+    int err;
+    sqlite3 * handle = GET_HANDLE(env, object);
+    sqlite3_stmt * statement = GET_STATEMENT(env, object);
+    jint fd = -1;
+
+    // Execute the statement
+    err = sqlite3_step(statement);
+
+    if (err == SQLITE_ROW && sqlite3_column_type(statement, 0) != SQLITE_NULL) {
+        const void * blob = sqlite3_column_blob(statement, 0);
+        jint length = sqlite3_column_bytes(statement, 0);
+        // a region cannot be empty, an empty value still gets one byte
+        fd = create_shared_memory("sqlcipher blob", length > 0 ? length : 1);
+        if (fd < 0) {
+            jniThrowException(env, "java/io/IOException", "Failed to create shared memory");
+        } else if (length > 0) {
+            void * dest = mmap(NULL, length, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+            if (dest == MAP_FAILED) {
+                jniThrowException(env, "java/io/IOException", "Failed to map shared memory");
+                close(fd);
+                fd = -1;
+            } else {
+                memcpy(dest, blob, length);
+                munmap(dest, length);
+            }
+        }
+        if (fd >= 0 && protect_shared_memory(fd, PROT_READ) < 0) {
+            jniThrowException(env, "java/io/IOException", "Failed to protect shared memory");
+            close(fd);
+            fd = -1;
+        }
+        if (fd >= 0) {
+            env->SetIntArrayRegion(lengthOut, 0, 1, &length);
+        }
+    } else if (err != SQLITE_ROW && err != SQLITE_DONE) {
+        throw_sqlite3_exception_errcode(env, err, sqlite3_errmsg(handle));
+    }
+
+    // Reset the statement so it's ready to use again
+    sqlite3_reset(statement);
+
+    return fd;
+}
+
+static int bind_batch_value(JNIEnv* env, sqlite3_stmt * statement, int index,
+                            jint type, jobject column, void * values, jint row)
+{
+    int err;
+    switch (type) {
+    case BATCH_COLUMN_LONG:
+        return sqlite3_bind_int64(statement, index, ((jlong *)values)[row]);
+    case BATCH_COLUMN_DOUBLE:
+        return sqlite3_bind_double(statement, index, ((jdouble *)values)[row]);
+    case BATCH_COLUMN_STRING: {
+        jstring value = (jstring)env->GetObjectArrayElement((jobjectArray)column, row);
+        if (value == NULL) {
+            return sqlite3_bind_null(statement, index);
+        }
+        jchar const * text = env->GetStringChars(value, NULL);
+        jsize textLen = env->GetStringLength(value);
+        err = sqlite3_bind_text16(statement, index, text, textLen * 2, SQLITE_TRANSIENT);
+        env->ReleaseStringChars(value, text);
+        env->DeleteLocalRef(value);
+        return err;
+    }
+    case BATCH_COLUMN_BLOB: {
+        jbyteArray value = (jbyteArray)env->GetObjectArrayElement((jobjectArray)column, row);
+        if (value == NULL) {
+            return sqlite3_bind_null(statement, index);
+        }
+        jint len = env->GetArrayLength(value);
+        jbyte * bytes = env->GetByteArrayElements(value, NULL);
+        err = sqlite3_bind_blob(statement, index, bytes, len, SQLITE_TRANSIENT);
+        env->ReleaseByteArrayElements(value, bytes, JNI_ABORT);
+        env->DeleteLocalRef(value);
+        return err;
+    }
+    default:
+        return SQLITE_MISUSE;
+    }
+}
+
+/**
+ * Binds and executes the statement once per row of the column-major values in columns,
+ * returning the row ID of the inserted row (or -1) for each row if returnInsertIds is
+ * true, or the number of changed rows otherwise. Stops at the first failing row.
+ */
+static jlongArray native_execute_batch(JNIEnv* env, jobject object, jintArray columnTypes,
+                                       jobjectArray columns, jint numRows,
+                                       jboolean returnInsertIds)
+{
+    int err = SQLITE_OK;
+    sqlite3 * handle = GET_HANDLE(env, object);
+    sqlite3_stmt * statement = GET_STATEMENT(env, object);
+    jint numColumns = env->GetArrayLength(columns);
+    bool failed = false;
+
+    // every parameter must be bound by a column, or the rows would silently reuse the
+    // values left bound on this pooled statement by an earlier caller
+    if (numColumns != sqlite3_bind_parameter_count(statement)) {
+        char buf[96];
+        snprintf(buf, sizeof(buf), "%d columns given for a statement with %d parameters",
+                 numColumns, sqlite3_bind_parameter_count(statement));
+        jniThrowException(env, "java/lang/IllegalArgumentException", buf);
+        return NULL;
+    }
+    jlongArray results = env->NewLongArray(numRows);
+    if (results == NULL || env->EnsureLocalCapacity(numColumns + 4) != JNI_OK) {
+        return NULL;
+    }
+
+    jint * types = env->GetIntArrayElements(columnTypes, NULL);
+    jobject * arrays = (jobject *)calloc(numColumns, sizeof(jobject));
+    void ** values = (void **)calloc(numColumns, sizeof(void *));
+    if (types == NULL || arrays == NULL || values == NULL) {
+        free(arrays);
+        free(values);
+        if (types != NULL) {
+            env->ReleaseIntArrayElements(columnTypes, types, JNI_ABORT);
+        }
+        jniThrowException(env, "java/lang/OutOfMemoryError", "execute_batch");
+        return NULL;
+    }
+
+    // Pin the numeric columns once for the whole batch
+    for (int col = 0; col < numColumns; col++) {
+        arrays[col] = env->GetObjectArrayElement(columns, col);
+        if (types[col] == BATCH_COLUMN_LONG) {
+            values[col] = env->GetLongArrayElements((jlongArray)arrays[col], NULL);
+        } else if (types[col] == BATCH_COLUMN_DOUBLE) {
+            values[col] = env->GetDoubleArrayElements((jdoubleArray)arrays[col], NULL);
+        }
+    }
+
+    jlong * resultValues = env->GetLongArrayElements(results, NULL);
+    for (jint row = 0; row < numRows && !failed; row++) {
+        for (int col = 0; col < numColumns; col++) {
+            err = bind_batch_value(env, statement, col + 1, types[col], arrays[col], values[col], row);
+            if (err != SQLITE_OK) {
+                char buf[64];
+                snprintf(buf, sizeof(buf), "binding row %d column %d", row, col);
+                throw_sqlite3_exception(env, handle, buf);
+                failed = true;
+                break;
+            }
+        }
+        if (failed) {
+            break;
+        }
+
+        err = sqlite3_step(statement);
+        if (err != SQLITE_DONE) {
+            throw_sqlite3_exception_errcode(env, err,
+                                            sqlite3_extended_errcode(handle),
+                                            sqlite3_errmsg(handle));
+            failed = true;
+            break;
+        }
+        if (returnInsertIds) {
+            resultValues[row] = sqlite3_changes(handle) > 0 ? sqlite3_last_insert_rowid(handle) : -1;
+        } else {
+            resultValues[row] = sqlite3_changes(handle);
+        }
+
+        // Reset the statement so it's ready for the next row
+        sqlite3_reset(statement);
+    }
+    sqlite3_reset(statement);
+
+    env->ReleaseLongArrayElements(results, resultValues, failed ? JNI_ABORT : 0);
+    for (int col = 0; col < numColumns; col++) {
+        if (types[col] == BATCH_COLUMN_LONG) {
+            env->ReleaseLongArrayElements((jlongArray)arrays[col], (jlong *)values[col], JNI_ABORT);
+        } else if (types[col] == BATCH_COLUMN_DOUBLE) {
+            env->ReleaseDoubleArrayElements((jdoubleArray)arrays[col], (jdouble *)values[col], JNI_ABORT);
+        }
+        env->DeleteLocalRef(arrays[col]);
+    }
+    env->ReleaseIntArrayElements(columnTypes, types, JNI_ABORT);
+    free(arrays);
+    free(values);
+
+    return failed ? NULL : results;
+}
+
 
 static JNINativeMethod sMethods[] =
 {
@@ -125,6 +365,8 @@ static JNINativeMethod sMethods[] =
     {"native_execute", "()V", (void *)native_execute},
     {"native_1x1_long", "()J", (void *)native_1x1_long},
     {"native_1x1_string", "()Ljava/lang/String;", (void *)native_1x1_string},
+    {"native_1x1_blob_fd", "([I)I", (void *)native_1x1_blob_fd},
+    {"native_execute_batch", "([I[Ljava/lang/Object;IZ)[J", (void *)native_execute_batch},
 };
 
 
@@ -145,6 +387,12 @@ int register_android_database_SQLiteStatement(JNIEnv * env)
         LOGE("Error locating fields");
         return -1;
     }
+
+    void * libandroid = dlopen("libandroid.so", RTLD_NOW);
+    if (libandroid != NULL) {
+        gSharedMemoryCreate = (ASharedMemory_create_func)dlsym(libandroid, "ASharedMemory_create");
+        gSharedMemorySetProt = (ASharedMemory_setProt_func)dlsym(libandroid, "ASharedMemory_setProt");
+    }
     return env->RegisterNatives(clazz, sMethods, NELEM(sMethods));
 }
 
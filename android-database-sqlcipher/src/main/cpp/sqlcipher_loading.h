@@ -34,6 +34,8 @@ int register_android_database_SQLiteProgram(JNIEnv * env);
 
 int register_android_database_SQLiteStatement(JNIEnv * env);
 
+int register_android_database_SQLiteBlob(JNIEnv * env);
+
 int register_android_database_SQLiteDebug(JNIEnv *env);
 
 int register_android_database_CursorWindow(JNIEnv *env);
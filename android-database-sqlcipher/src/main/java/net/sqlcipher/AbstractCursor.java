@@ -78,6 +78,19 @@ public abstract class AbstractCursor implements android.database.CrossProcessCur
         return getColumnNames().length;
     }
 
+    /**
+     * Returns the number of rows in the cursor, or for a cursor that counts its rows
+     * lazily, any number greater than position if the cursor has a row at position.
+     * Moving the cursor and checking its position use this instead of
+     * {@link #getCount()} so that they don't force a full count.
+     *
+     * @param position the position to check
+     * @return the number of rows, or a lower bound of it greater than position
+     */
+    protected int getCountForPosition(int position) {
+        return getCount();
+    }
+
     public void deactivate() {
         deactivateInternal();
     }
@@ -175,7 +188,7 @@ public abstract class AbstractCursor implements android.database.CrossProcessCur
 
     public final boolean moveToPosition(int position) {
         // Make sure position isn't past the end of the cursor
-        final int count = getCount();
+        final int count = getCountForPosition(position);
         if (position >= count) {
             mPos = count;
             return false;
@@ -235,7 +248,7 @@ public abstract class AbstractCursor implements android.database.CrossProcessCur
     }
 
     public final boolean isFirst() {
-        return mPos == 0 && getCount() != 0;
+        return mPos == 0 && getCountForPosition(0) != 0;
     }
 
     public final boolean isLast() {
@@ -244,17 +257,17 @@ public abstract class AbstractCursor implements android.database.CrossProcessCur
     }
 
     public final boolean isBeforeFirst() {
-        if (getCount() == 0) {
+        if (getCountForPosition(0) == 0) {
             return true;
         }
         return mPos == -1;
     }
 
     public final boolean isAfterLast() {
-        if (getCount() == 0) {
+        if (getCountForPosition(0) == 0) {
             return true;
         }
-        return mPos == getCount();
+        return mPos == getCountForPosition(mPos);
     }
 
     public int getColumnIndex(String columnName) {
@@ -558,7 +571,7 @@ public abstract class AbstractCursor implements android.database.CrossProcessCur
      * @throws CursorIndexOutOfBoundsException
      */
     protected void checkPosition() {
-        if (-1 == mPos || getCount() == mPos) {
+        if (-1 == mPos || getCountForPosition(mPos) == mPos) {
             throw new CursorIndexOutOfBoundsException(mPos, getCount());
         }
     }
@@ -1,19 +1,28 @@
 package net.sqlcipher;
 
-import net.sqlcipher.CursorWindowAllocation;
+import net.sqlcipher.PooledCursorWindowAllocation;
 
-public class CustomCursorWindowAllocation implements CursorWindowAllocation {
+public class CustomCursorWindowAllocation implements PooledCursorWindowAllocation {
 
   private long initialAllocationSize = 0L;
   private long growthPaddingSize = 0L;
   private long maxAllocationSize = 0L;
+  private int maxPooledWindows = 0;
 
   public CustomCursorWindowAllocation(long initialSize,
                                      long growthPaddingSize,
                                      long maxAllocationSize){
+    this(initialSize, growthPaddingSize, maxAllocationSize, 0);
+  }
+
+  public CustomCursorWindowAllocation(long initialSize,
+                                     long growthPaddingSize,
+                                     long maxAllocationSize,
+                                     int maxPooledWindows){
     this.initialAllocationSize = initialSize;
     this.growthPaddingSize = growthPaddingSize;
     this.maxAllocationSize = maxAllocationSize;
+    this.maxPooledWindows = maxPooledWindows;
   }
 
   public long getInitialAllocationSize() {
@@ -27,4 +36,8 @@ public class CustomCursorWindowAllocation implements CursorWindowAllocation {
   public long getMaxAllocationSize() {
     return maxAllocationSize;
   }
+
+  public int getMaxPooledWindows() {
+    return maxPooledWindows;
+  }
 }
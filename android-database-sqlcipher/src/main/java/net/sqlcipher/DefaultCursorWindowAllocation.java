@@ -1,11 +1,12 @@
 package net.sqlcipher;
 
-import net.sqlcipher.CursorWindowAllocation;
+import net.sqlcipher.PooledCursorWindowAllocation;
 
-public class DefaultCursorWindowAllocation implements CursorWindowAllocation {
+public class DefaultCursorWindowAllocation implements PooledCursorWindowAllocation {
 
   private long initialAllocationSize = 1024 * 1024;
   private long WindowAllocationUnbounded = 0;
+  private int maxPooledWindows = 4;
 
   public long getInitialAllocationSize() {
     return initialAllocationSize;
@@ -18,4 +19,8 @@ public class DefaultCursorWindowAllocation implements CursorWindowAllocation {
   public long getMaxAllocationSize() {
     return WindowAllocationUnbounded;
   }
+
+  public int getMaxPooledWindows() {
+    return maxPooledWindows;
+  }
 }
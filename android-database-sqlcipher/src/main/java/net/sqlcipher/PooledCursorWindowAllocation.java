@@ -0,0 +1,16 @@
+package net.sqlcipher;
+
+import net.sqlcipher.CursorWindowAllocation;
+
+/**
+ * A {@link CursorWindowAllocation} that also bounds the process-wide pool of
+ * closed native window buffers that new {@link CursorWindow}s are drawn from.
+ * Pooled buffers are kept at the initial allocation size, so the pool holds at
+ * most getMaxPooledWindows() * getInitialAllocationSize() bytes of native memory.
+ */
+public interface PooledCursorWindowAllocation extends CursorWindowAllocation {
+  /**
+   * @return the number of closed windows to keep for reuse, 0 disables pooling
+   */
+  int getMaxPooledWindows();
+}
@@ -0,0 +1,283 @@
+package net.sqlcipher.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A handle for incremental I/O on one BLOB value, see sqlite3_blob_open. Unlike
+ * reading the value through a {@link android.database.Cursor}, which copies all of it
+ * into a window and then into a byte array, a SQLiteBlob reads and writes ranges of the
+ * value directly, so values of any size can be streamed in constant memory.
+ *
+ * <p>Obtained from {@link SQLiteDatabase#openBlob(String, String, long, boolean)}. The
+ * size of the value is fixed while it is open: writes cannot grow it, so a value that
+ * will be written this way is first inserted as a {@code zeroblob(N)}. A handle becomes
+ * unusable, failing with an abort error, once its row is changed or deleted other than
+ * through the handle itself. {@link #reopen(long)} moves the handle to the same column of
+ * another row, which is cheaper than opening a new one.</p>
+ *
+ * <p>Each read and write holds the database lock only while it runs. Instances are not
+ * thread safe, and must be closed; closing the database closes them too.</p>
+ */
+public class SQLiteBlob extends SQLiteClosable {
+
+    private final SQLiteDatabase mDatabase;
+    private final boolean mWritable;
+    private int mLength;
+
+    /**
+     * Native linkage, do not modify. This comes from the database.
+     */
+    /* package */ long nHandle = 0;
+
+    /**
+     * Native linkage, do not modify. When non-0 this holds a sqlite3_blob handle.
+     */
+    /* package */ long nBlob = 0;
+
+    /* package */ SQLiteBlob(SQLiteDatabase db, String database, String table, String column,
+                             long rowId, boolean writable) {
+        mDatabase = db;
+        mWritable = writable;
+        nHandle = db.mNativeHandle;
+        db.acquireReference();
+        db.lock();
+        try {
+            native_open(database, table, column, rowId, writable);
+            mLength = native_bytes();
+        } catch (RuntimeException e) {
+            db.releaseReference();
+            throw e;
+        } finally {
+            db.unlock();
+        }
+        db.addSQLiteClosable(this);
+    }
+
+    /**
+     * @return the size of the value in bytes
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return true if the handle was opened for writing
+     */
+    public boolean isWritable() {
+        return mWritable;
+    }
+
+    /**
+     * Points this handle at the same column of another row of the same table.
+     *
+     * @param rowId the rowid of the row
+     * @throws android.database.sqlite.SQLiteException if the row does not exist or its
+     *         value is not a BLOB or text; the handle is unusable afterwards
+     */
+    public void reopen(long rowId) {
+        mDatabase.lock();
+        try {
+            native_reopen(rowId);
+            mLength = native_bytes();
+        } finally {
+            mDatabase.unlock();
+        }
+    }
+
+    /**
+     * Reads bytes of the value at the given position.
+     *
+     * @param buffer the buffer to read into
+     * @param offset the position in the buffer to read into
+     * @param length the most bytes to read
+     * @param blobOffset the position in the value to read from
+     * @return the number of bytes read, which is less than length only at the end of
+     *         the value, or -1 if blobOffset is at or past the end of the value
+     */
+    public int read(byte[] buffer, int offset, int length, int blobOffset) {
+        checkRange(buffer, offset, length, blobOffset);
+        if (blobOffset >= mLength) {
+            return length == 0 ? 0 : -1;
+        }
+        int count = Math.min(length, mLength - blobOffset);
+        mDatabase.lock();
+        try {
+            native_read(buffer, offset, count, blobOffset);
+        } finally {
+            mDatabase.unlock();
+        }
+        return count;
+    }
+
+    /**
+     * Writes bytes into the value at the given position.
+     *
+     * @param buffer the buffer to write from
+     * @param offset the position in the buffer to write from
+     * @param length the number of bytes to write
+     * @param blobOffset the position in the value to write to
+     * @throws IllegalArgumentException if the write would go past the end of the value
+     * @throws IllegalStateException if the handle was not opened for writing
+     */
+    public void write(byte[] buffer, int offset, int length, int blobOffset) {
+        if (!mWritable) {
+            throw new IllegalStateException("blob was opened read-only");
+        }
+        checkRange(buffer, offset, length, blobOffset);
+        if (length > mLength - blobOffset) {
+            throw new IllegalArgumentException("writing " + length + " bytes at " + blobOffset +
+                    " exceeds the blob size of " + mLength + " bytes");
+        }
+        mDatabase.lock();
+        try {
+            native_write(buffer, offset, length, blobOffset);
+        } finally {
+            mDatabase.unlock();
+        }
+    }
+
+    /**
+     * Returns a stream reading the value from its start. Closing the stream closes this
+     * handle.
+     */
+    public InputStream getInputStream() {
+        return new BlobInputStream();
+    }
+
+    /**
+     * Returns a stream writing the value from its start. Closing the stream closes this
+     * handle; writing past the end of the value fails with an IOException.
+     */
+    public OutputStream getOutputStream() {
+        if (!mWritable) {
+            throw new IllegalStateException("blob was opened read-only");
+        }
+        return new BlobOutputStream();
+    }
+
+    /**
+     * Closes the handle. Outside of a transaction, an open handle keeps the transaction
+     * it was opened in, and its writes are committed when it is closed.
+     */
+    public void close() {
+        releaseReference();
+    }
+
+    @Override
+    protected void onAllReferencesReleased() {
+        mDatabase.lock();
+        try {
+            native_close();
+        } finally {
+            mDatabase.unlock();
+        }
+        mDatabase.releaseReference();
+        mDatabase.removeSQLiteClosable(this);
+    }
+
+    @Override
+    protected void onAllReferencesReleasedFromContainer() {
+        native_close();
+        mDatabase.releaseReference();
+    }
+
+    private static void checkRange(byte[] buffer, int offset, int length, int blobOffset) {
+        if (offset < 0 || length < 0 || offset > buffer.length - length || blobOffset < 0) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length +
+                    ", blob offset " + blobOffset + " for a buffer of " + buffer.length);
+        }
+    }
+
+    private class BlobInputStream extends InputStream {
+        private final byte[] mSingleByte = new byte[1];
+        private int mPosition;
+        private int mMark;
+
+        @Override
+        public int read() throws IOException {
+            return read(mSingleByte, 0, 1) < 0 ? -1 : mSingleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count;
+            try {
+                count = SQLiteBlob.this.read(buffer, offset, length, mPosition);
+            } catch (RuntimeException e) {
+                throw new IOException(e);
+            }
+            if (count > 0) {
+                mPosition += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, (long) mLength - mPosition));
+            mPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return Math.max(0, mLength - mPosition);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            mMark = mPosition;
+        }
+
+        @Override
+        public void reset() {
+            mPosition = mMark;
+        }
+
+        @Override
+        public void close() {
+            SQLiteBlob.this.close();
+        }
+    }
+
+    private class BlobOutputStream extends OutputStream {
+        private final byte[] mSingleByte = new byte[1];
+        private int mPosition;
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingleByte[0] = (byte) b;
+            write(mSingleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                SQLiteBlob.this.write(buffer, offset, length, mPosition);
+            } catch (RuntimeException e) {
+                throw new IOException(e);
+            }
+            mPosition += length;
+        }
+
+        @Override
+        public void close() {
+            SQLiteBlob.this.close();
+        }
+    }
+
+    private native void native_open(String database, String table, String column, long rowId,
+                                    boolean writable);
+    private native void native_reopen(long rowId);
+    private native int native_bytes();
+    private native void native_read(byte[] buffer, int offset, int length, int blobOffset);
+    private native void native_write(byte[] buffer, int offset, int length, int blobOffset);
+    private native void native_close();
+}
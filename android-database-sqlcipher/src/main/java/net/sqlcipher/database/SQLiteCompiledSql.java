@@ -52,6 +52,12 @@ import android.util.Log;
     /** when in cache and is in use, this member is set */
     private boolean mInUse = false;
 
+    /**
+     * set while this object is in the compiled-sql cache of {@link SQLiteDatabase}.
+     * guarded by {@link SQLiteDatabase#mCompiledQueries}.
+     */
+    /* package */ boolean mInCache = false;
+
     /* package */ SQLiteCompiledSql(SQLiteDatabase db, String sql) {
         if (!db.isOpen()) {
             throw new IllegalStateException("database " + db.getPath() + " already closed");
@@ -105,6 +111,17 @@ import android.util.Log;
         }
     }
 
+    /**
+     * releases the compiled statement unless a {@link SQLiteProgram} has acquired it.
+     * called when this object is evicted or purged from the compiled-sql cache; a program
+     * still using it releases it when it is done, since it is no longer in the cache.
+     */
+    /* package */ synchronized void releaseSqlStatementIfNotInUse() {
+        if (!mInUse) {
+            releaseSqlStatement();
+        }
+    }
+
     /**
      * returns true if acquire() succeeds. false otherwise.
      */
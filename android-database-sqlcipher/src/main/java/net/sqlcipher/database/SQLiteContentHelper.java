@@ -15,12 +15,8 @@
  */
 
 package net.sqlcipher.database;
-import net.sqlcipher.*;
 
 import android.content.res.AssetFileDescriptor;
-import android.os.MemoryFile;
-
-import android.database.Cursor;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -47,22 +43,11 @@ public class SQLiteContentHelper {
      */
 	public static AssetFileDescriptor getBlobColumnAsAssetFile(SQLiteDatabase db, String sql,
 	        String[] selectionArgs) throws FileNotFoundException {
-	    android.os.ParcelFileDescriptor fd = null;
-
 	    try {
-	        MemoryFile file = simpleQueryForBlobMemoryFile(db, sql, selectionArgs);
-	        if (file == null) {
+	        AssetFileDescriptor afd = simpleQueryForBlobAssetFile(db, sql, selectionArgs);
+	        if (afd == null) {
 	            throw new FileNotFoundException("No results.");
 	        }
-	        Class c = file.getClass();
-	        try {
-	            java.lang.reflect.Method m = c.getDeclaredMethod("getParcelFileDescriptor");
-	            m.setAccessible(true);
-	            fd = (android.os.ParcelFileDescriptor)m.invoke(file);
-	        } catch (Exception e) {
-	            android.util.Log.i("SQLiteContentHelper", "SQLiteCursor.java: " + e);
-	        }
-	        AssetFileDescriptor afd = new AssetFileDescriptor(fd, 0, file.length());
 	        return afd;
 	    } catch (IOException ex) {
 	        throw new FileNotFoundException(ex.toString());
@@ -70,36 +55,32 @@ public class SQLiteContentHelper {
 	}
 
     /**
-     * Runs an SQLite query and returns a MemoryFile for the
-     * blob in column 0 of the first row. If the first column does
-     * not contain a blob, an unspecified exception is thrown.
+     * Runs an SQLite query and returns an AssetFileDescriptor of read-only shared
+     * memory holding the blob in column 0 of the first row. The native code copies the
+     * value from SQLite into the shared memory directly, so it never goes through the
+     * Java heap. If the first column does not contain a blob, an unspecified exception
+     * is thrown.
      *
-     * @return A memory file, or {@code null} if the query returns no results
+     * @return A descriptor, or {@code null} if the query returns no results
      *         or the value column 0 is NULL.
-     * @throws IOException If there is an error creating the memory file.
+     * @throws IOException If there is an error creating the shared memory.
      */
-    // TODO: make this native and use the SQLite blob API to reduce copying
-    private static MemoryFile simpleQueryForBlobMemoryFile(SQLiteDatabase db, String sql,
+    private static AssetFileDescriptor simpleQueryForBlobAssetFile(SQLiteDatabase db, String sql,
             String[] selectionArgs) throws IOException {
-        Cursor cursor = db.rawQuery(sql, selectionArgs);
-        if (cursor == null) {
-            return null;
-        }
+        SQLiteStatement statement = db.compileStatement(sql);
         try {
-            if (!cursor.moveToFirst()) {
-                return null;
+            if (selectionArgs != null) {
+                for (int i = 0; i < selectionArgs.length; i++) {
+                    if (selectionArgs[i] == null) {
+                        statement.bindNull(i + 1);
+                    } else {
+                        statement.bindString(i + 1, selectionArgs[i]);
+                    }
+                }
             }
-            byte[] bytes = cursor.getBlob(0);
-            if (bytes == null) {
-                return null;
-            }
-            MemoryFile file = new MemoryFile(null, bytes.length);
-            file.writeBytes(bytes, 0, 0, bytes.length);
-
-         //   file.deactivate();
-            return file;
+            return statement.simpleQueryForBlobAssetFile();
         } finally {
-            cursor.close();
+            statement.close();
         }
     }
 
@@ -29,6 +29,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import android.database.CharArrayBuffer;
 import android.database.DataSetObserver;
 import android.database.SQLException;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
@@ -69,6 +70,21 @@ public class SQLiteCursor extends AbstractWindowedCursor {
 
     private boolean fillWindowForwardOnly = false;
 
+    /** Whether the rows are only counted when the count is asked for */
+    private boolean mLazyCount = false;
+
+    /** Whether mCount is only a lower bound of the number of rows, in lazy count mode */
+    private boolean mCountIsLowerBound = false;
+
+    /** The number of rows read into each window when streaming, or 0 if not streaming */
+    private int mStreamingBatchSize = 0;
+
+    /** The result column holding the keyset key, or -1 if keyset seeking is off */
+    private int mKeyColumnIndex = -1;
+
+    /** The 1-based index of the bind parameter holding the keyset lower bound */
+    private int mKeyBindIndex = 0;
+
     /** A mapping of column names to column indices, to speed up lookups */
     private Map<String, Integer> mColumnNameMap;
 
@@ -89,6 +105,87 @@ public class SQLiteCursor extends AbstractWindowedCursor {
       fillWindowForwardOnly = value;
     }
 
+    /**
+     * Makes the cursor stream its results: each window holds at most batchSize rows
+     * starting at the row being moved to, and is filled by continuing to step the
+     * query from where the previous window stopped. The full result set is never
+     * counted and never held in memory, so reading it front to back takes a single
+     * pass over the query in constant memory.
+     *
+     * <p>Until the last row has been read, {@link #getCount()} returns the number of
+     * rows read so far plus one, so {@code while (cursor.moveToNext())} loops work as
+     * usual but the count is only exact once the cursor has moved past the last batch.
+     * Moving backwards out of the current window re-runs the query from its first row.
+     * Between batches the query stays active, holding a read transaction that keeps
+     * write-ahead log checkpoints from completing, until it has returned its last row or
+     * the cursor is closed; read the cursor through promptly.
+     *
+     * @param batchSize the number of rows to read per window, or 0 to stop streaming
+     */
+    public void setStreaming(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("invalid streaming batch size " + batchSize);
+        }
+        mStreamingBatchSize = batchSize;
+    }
+
+    /**
+     * Makes the cursor count its rows only when the count is asked for. Normally the
+     * first window is filled and then the query is stepped over all of the remaining
+     * rows to count them; in lazy count mode filling stops once the window is full, so a
+     * cursor that only shows its first rows never reads the rest of the result set.
+     *
+     * <p>Moving the cursor and reading its rows don't need the count. {@link #getCount()},
+     * {@link #moveToLast()} and {@link #isLast()} count the rows when they are called,
+     * stepping the query over all of its rows. This has no effect with
+     * {@link #setLoadStyle} or {@link #setStreaming(int)}. Call this before the cursor is
+     * first moved.
+     *
+     * @param lazyCount true to count the rows only when asked for
+     */
+    public void setLazyCount(boolean lazyCount) {
+        mLazyCount = lazyCount;
+    }
+
+    /**
+     * Sets the signal that cancels the query of this cursor. Cancelling it while the
+     * cursor is filling a window or counting its rows interrupts the query and makes the
+     * move or {@link #getCount()} that triggered it throw
+     * {@link android.os.OperationCanceledException}, releasing the database lock right
+     * away; once cancelled, every move that needs a new window throws it.
+     *
+     * @param cancellationSignal the signal, or null to remove it
+     */
+    public void setCancellationSignal(CancellationSignal cancellationSignal) {
+        mQuery.setCancellationSignal(cancellationSignal);
+    }
+
+    /**
+     * Lets the cursor move its window forward by re-seeking the query with the key
+     * of the last row before the new window, instead of stepping over every row
+     * before it. The query must order its rows by a unique key that is one of its
+     * result columns, and only return the rows whose key is greater than a bind
+     * parameter, e.g. {@code SELECT _id, name FROM t WHERE _id > ? ORDER BY _id}.
+     * The original value of that parameter must be passed in the selection arguments;
+     * it is restored whenever the query has to start over from its first row. Once the
+     * row count is known the query is also left on the row after each full window, so
+     * that a window starting there continues from it; it then stays active, holding a
+     * read transaction, until it is finished, re-seeked or the cursor is closed.
+     *
+     * @param keyColumnIndex the index of the result column holding the key, or -1 to
+     *     turn keyset seeking off
+     * @param keyBindIndex the 1-based index of the bind parameter holding the
+     *     exclusive lower bound of the key
+     */
+    public void setKeysetSeek(int keyColumnIndex, int keyBindIndex) {
+        if (keyColumnIndex >= mColumns.length || (keyColumnIndex >= 0 && keyBindIndex < 1)) {
+            throw new IllegalArgumentException("invalid keyset column " + keyColumnIndex +
+                                               " or parameter " + keyBindIndex);
+        }
+        mKeyColumnIndex = keyColumnIndex;
+        mKeyBindIndex = keyBindIndex;
+    }
+
     /**
      *  support for a cursor variant that doesn't always read all results
      *  initialRead is the initial number of items that cursor window reads
@@ -291,11 +388,48 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         if (mCount == NO_COUNT) {
             fillWindow(0);
         }
+        if (mCountIsLowerBound) {
+            mDatabase.lock();
+            try {
+                mCount = mQuery.countRowsLocked();
+            } finally {
+                mDatabase.unlock();
+            }
+            mCountIsLowerBound = false;
+        }
+        return mCount;
+    }
+
+    @Override
+    protected int getCountForPosition(int position) {
+        if (mCount == NO_COUNT) {
+            fillWindow(0);
+        }
+        if (mCountIsLowerBound && position >= mCount) {
+            // only the rows up to the window holding position need to be read
+            fillWindow(position);
+        }
         return mCount;
     }
 
     private void fillWindow (int requiredPos) {
+        if (mStreamingBatchSize > 0) {
+            fillStreamingWindow(requiredPos);
+            return;
+        }
         int startPos = 0;
+        if(fillWindowForwardOnly) {
+          startPos = requiredPos;
+        } else {
+          startPos = mCount == NO_COUNT
+            ? cursorPickFillWindowStartPosition(requiredPos, 0)
+            : cursorPickFillWindowStartPosition(requiredPos, mCursorWindowCapacity);
+        }
+        // the background loading of setLoadStyle() relies on the statement being
+        // re-run for each window, so only keep it positioned when loading all rows
+        boolean loadAll = mInitialRead == Integer.MAX_VALUE && mMaxRead == Integer.MAX_VALUE;
+        Object seekKey = null;
+        boolean seek = false;
         if (mWindow == null) {
             // If there isn't a window set already it will only be accessed locally
             mWindow = new CursorWindow(true /* the window is local only */);
@@ -303,25 +437,56 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             mCursorState++;
                 queryThreadLock();
                 try {
+                    if (loadAll && mKeyColumnIndex >= 0 && startPos > 0) {
+                        int keyRow = startPos - 1;
+                        int windowStart = mWindow.getStartPosition();
+                        if (keyRow >= windowStart && keyRow < windowStart + mWindow.getNumRows()) {
+                            seekKey = getKeyFromWindow(keyRow);
+                            seek = true;
+                        }
+                    }
                     mWindow.clear();
                 } finally {
                     queryThreadUnlock();
                 }
         }
-        if(fillWindowForwardOnly) {
-          startPos = requiredPos;
-        } else {
-          startPos = mCount == NO_COUNT
-            ? cursorPickFillWindowStartPosition(requiredPos, 0)
-            : cursorPickFillWindowStartPosition(requiredPos, mCursorWindowCapacity);
-        }
         mWindow.setStartPosition(startPos);
         mWindow.setRequiredPosition(requiredPos);
         if(BuildConfig.DEBUG){
           Log.v(TAG, String.format("Filling cursor window with start position:%d required position:%d",
                                    startPos, requiredPos));
         }
-        mCount = mQuery.fillWindow(mWindow, mInitialRead, 0);
+        if (loadAll) {
+            // once the count is known, stop counting the rows after the window; only a
+            // keyset cursor keeps the statement positioned for the next window, as the
+            // windows picked around the required row start before where it stopped
+            boolean countAllRows = mCount == NO_COUNT && !mLazyCount;
+            int count;
+            mDatabase.lock();
+            try {
+                if (seek) {
+                    mQuery.seekToKey(startPos, mKeyBindIndex, seekKey);
+                }
+                count = mQuery.fillWindow(mWindow, mInitialRead, 0, countAllRows,
+                                          mKeyColumnIndex >= 0);
+            } finally {
+                mDatabase.unlock();
+            }
+            if (countAllRows) {
+                mCount = count;
+            } else if (mCount == NO_COUNT || mCountIsLowerBound) {
+                if (count <= startPos + mWindow.getNumRows()) {
+                    // the rows ran out before the window filled up
+                    mCount = count;
+                    mCountIsLowerBound = false;
+                } else if (count > mCount) {
+                    mCount = count;
+                    mCountIsLowerBound = true;
+                }
+            }
+        } else {
+            mCount = mQuery.fillWindow(mWindow, mInitialRead, 0);
+        }
         if(mCursorWindowCapacity == 0) {
           mCursorWindowCapacity = mWindow.getNumRows();
         }
@@ -333,6 +498,41 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         }
     }
 
+    /**
+     * Fills the window with the next batch of rows when streaming, see
+     * {@link #setStreaming(int)}.
+     */
+    private void fillStreamingWindow(int requiredPos) {
+        if (mWindow == null) {
+            // If there isn't a window set already it will only be accessed locally
+            mWindow = new CursorWindow(true /* the window is local only */);
+        } else {
+            mWindow.clear();
+        }
+        mWindow.setStartPosition(requiredPos);
+        mWindow.setRequiredPosition(requiredPos);
+        if(BuildConfig.DEBUG){
+          Log.v(TAG, String.format("Filling streaming cursor window with %d rows from position:%d",
+                                   mStreamingBatchSize, requiredPos));
+        }
+        mCount = mQuery.fillWindow(mWindow, mStreamingBatchSize, 0, false, true);
+    }
+
+    private Object getKeyFromWindow(int row) {
+        switch (mWindow.getType(row, mKeyColumnIndex)) {
+            case android.database.Cursor.FIELD_TYPE_INTEGER:
+                return mWindow.getLong(row, mKeyColumnIndex);
+            case android.database.Cursor.FIELD_TYPE_FLOAT:
+                return mWindow.getDouble(row, mKeyColumnIndex);
+            case android.database.Cursor.FIELD_TYPE_BLOB:
+                return mWindow.getBlob(row, mKeyColumnIndex);
+            case android.database.Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                return mWindow.getString(row, mKeyColumnIndex);
+        }
+    }
+
     @Override
     public int getColumnIndex(String columnName) {
         // Create mColumnNameMap on demand
@@ -388,12 +588,16 @@ public class SQLiteCursor extends AbstractWindowedCursor {
          * Ensure we don't change the state of the database when another
          * thread is holding the database lock. requery() and moveTo() are also
          * synchronized here to make sure they get the state of the database
-         * immediately following the DELETE.
+         * immediately following the DELETE. The write connection is locked
+         * first, the order SQLiteDatabase takes a connection and its read
+         * connections in.
          */
+        SQLiteDatabase writeConnection = mDatabase.getWriteConnection();
+        writeConnection.lock();
         mDatabase.lock();
         try {
             try {
-                mDatabase.delete(mEditTable, mColumns[mRowIdColumnIndex] + "=?",
+                writeConnection.delete(mEditTable, mColumns[mRowIdColumnIndex] + "=?",
                         new String[] {mCurrentRowID.toString()});
                 success = true;
             } catch (SQLException e) {
@@ -410,6 +614,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             moveToPosition(pos);
         } finally {
             mDatabase.unlock();
+            writeConnection.unlock();
         }
 
         if (success) {
@@ -468,7 +673,8 @@ public class SQLiteCursor extends AbstractWindowedCursor {
              * we process the updated rows, and prevents us from changing the
              * database behind the back of another thread.
              */
-            mDatabase.beginTransaction();
+            SQLiteDatabase db = mDatabase.getWriteConnection();
+            db.beginTransaction();
             try {
                 StringBuilder sql = new StringBuilder(128);
 
@@ -512,12 +718,12 @@ public class SQLiteCursor extends AbstractWindowedCursor {
                     sql.append(" WHERE " + mColumns[mRowIdColumnIndex]
                             + '=' + rowId);
                     sql.append(';');
-                    mDatabase.execSQL(sql.toString(), bindings);
-                    mDatabase.rowUpdated(mEditTable, rowId);
+                    db.execSQL(sql.toString(), bindings);
+                    db.rowUpdated(mEditTable, rowId);
                 }
-                mDatabase.setTransactionSuccessful();
+                db.setTransactionSuccessful();
             } finally {
-                mDatabase.endTransaction();
+                db.endTransaction();
             }
 
             mUpdatedRows.clear();
@@ -576,6 +782,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             // This one will recreate the temp table, and get its count
             mDriver.cursorRequeried(this);
             mCount = NO_COUNT;
+            mCountIsLowerBound = false;
             mCursorState++;
             queryThreadLock();
             try {
@@ -611,6 +818,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
                 queryThreadUnlock();
             }
             mCount = NO_COUNT;
+            mCountIsLowerBound = false;
         }
         mWindow = window;
     }
@@ -654,42 +862,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
 
 	@Override
 	public void fillWindow(int requiredPos, android.database.CursorWindow window) {
-      int startPos = 0;
-      if (mWindow == null) {
-      // If there isn't a window set already it will only be accessed locally
-        mWindow = new CursorWindow(true /* the window is local only */);
-      } else {
-        mCursorState++;
-        queryThreadLock();
-        try {
-          mWindow.clear();
-        } finally {
-          queryThreadUnlock();
-        }
-      }
-      if(fillWindowForwardOnly) {
-        startPos = requiredPos;
-      } else {
-        startPos = mCount == NO_COUNT
-          ? cursorPickFillWindowStartPosition(requiredPos, 0)
-          : cursorPickFillWindowStartPosition(requiredPos, mCursorWindowCapacity);
-      }
-      mWindow.setStartPosition(startPos);
-      mWindow.setRequiredPosition(requiredPos);
-      if(BuildConfig.DEBUG) {
-        Log.v(TAG, String.format("Filling cursor window with start position:%d required position:%d",
-                                 startPos, requiredPos));
-      }
-      mCount = mQuery.fillWindow(mWindow, mInitialRead, 0);
-      if(mCursorWindowCapacity == 0) {
-        mCursorWindowCapacity = mWindow.getNumRows();
-      }
-      // return -1 means not finished
-      if (mCount == NO_COUNT){
-        mCount = startPos + mInitialRead;
-        Thread t = new Thread(new QueryThread(mCursorState), "query thread");
-        t.start();
-      }
+      fillWindow(requiredPos);
 	}
 
   public int cursorPickFillWindowStartPosition(
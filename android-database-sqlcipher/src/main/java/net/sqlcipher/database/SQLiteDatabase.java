@@ -41,12 +41,23 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipInputStream;
 
@@ -153,6 +164,77 @@ public class SQLiteDatabase extends SQLiteClosable implements
     }
   }
 
+  /**
+   * Derives the raw key of this database from its passphrase, so that later opens with
+   * {@link #openDatabase(String, SQLiteRawKey, CursorFactory, int, SQLiteDatabaseHook, DatabaseErrorHandler)}
+   * skip the key derivation. The salt and the KDF settings are read from this
+   * connection with {@code PRAGMA cipher_salt}, {@code PRAGMA kdf_iter} and
+   * {@code PRAGMA cipher_kdf_algorithm}, so the ones applied by a hook are honored, and
+   * PBKDF2 runs once in Java.
+   *
+   * @param password the passphrase this database was opened with
+   *
+   * @return the raw key, to be closed by the caller once it is no longer needed
+   *
+   * @throws IllegalArgumentException if the password is empty or already a raw key
+   * @throws SQLiteException if the database is not open, or the SQLCipher in use does
+   *                         not report the salt of the database
+   */
+  public SQLiteRawKey exportRawKey(byte[] password) throws SQLiteException {
+    if (password == null || password.length == 0) {
+      throw new IllegalArgumentException("password should not be empty");
+    }
+    if (password.length > 2 && password[0] == 'x' && password[1] == '\'') {
+      throw new IllegalArgumentException("password is already a raw key");
+    }
+    if (!isOpen()) {
+      throw new SQLiteException("database not open");
+    }
+    Pair<Boolean, String> salt = getResultFromPragma("PRAGMA cipher_salt;");
+    if (!salt.first || salt.second == null || salt.second.length() == 0
+        || salt.second.length() % 2 != 0) {
+      throw new SQLiteException("database salt not available");
+    }
+    Pair<Boolean, String> iterations = getResultFromPragma("PRAGMA kdf_iter;");
+    Pair<Boolean, String> algorithm = getResultFromPragma("PRAGMA cipher_kdf_algorithm;");
+    String macAlgorithm = "HmacSHA1";
+    if (algorithm.first && algorithm.second != null) {
+      if (algorithm.second.endsWith("SHA512")) {
+        macAlgorithm = "HmacSHA512";
+      } else if (algorithm.second.endsWith("SHA256")) {
+        macAlgorithm = "HmacSHA256";
+      }
+    }
+    byte[] saltBytes = new byte[salt.second.length() / 2];
+    for (int i = 0; i < saltBytes.length; i++) {
+      saltBytes[i] = (byte)Integer.parseInt(salt.second.substring(2 * i, 2 * i + 2), 16);
+    }
+    try {
+      return new SQLiteRawKey(password, saltBytes, Integer.parseInt(iterations.second),
+                              macAlgorithm);
+    } catch (NumberFormatException e) {
+      throw new SQLiteException("kdf_iter not available");
+    }
+  }
+
+  /**
+   * Derives the raw key of this database from its passphrase.
+   *
+   * @param password the passphrase this database was opened with (char array)
+   *
+   * @see #exportRawKey(byte[])
+   */
+  public SQLiteRawKey exportRawKey(char[] password) throws SQLiteException {
+    byte[] keyMaterial = getBytes(password);
+    try {
+      return exportRawKey(keyMaterial);
+    } finally {
+      if (keyMaterial != null) {
+        Arrays.fill(keyMaterial, (byte) 0);
+      }
+    }
+  }
+
   private static void loadICUData(Context context, File workingDir) {
     OutputStream out = null;
     ZipInputStream in = null;
@@ -364,6 +446,34 @@ public class SQLiteDatabase extends SQLiteClosable implements
    */
   public static final int CREATE_IF_NECESSARY = 0x10000000;     // update native code if changing
 
+  /**
+   * Flag for {@link #openDatabase} to guard the database with a non-fair lock.
+   *
+   * {@more} By default the database lock is fair: it is handed to the thread that has
+   * waited longest, which costs a thread handoff on every unlock when several threads
+   * run short statements. A non-fair lock lets the releasing or a newly arriving thread
+   * take the lock right away, which gives a much higher throughput at the price of
+   * possibly starving a waiting thread; {@link #yieldIfContendedSafely(long)} then only
+   * yields reliably when given a sleep delay. Read-only connections opened with
+   * {@link #enableReadConnectionPool} use the same lock policy as the database.
+   */
+  public static final int NON_FAIR_LOCKING = 0x00000100;        // Java only, ignored by native code
+
+  /**
+   * Event flag for {@link #setTraceListener}: statements starting to run.
+   */
+  public static final int TRACE_STATEMENT = 0x01;  // SQLITE_TRACE_STMT
+
+  /**
+   * Event flag for {@link #setTraceListener}: statements finishing, with their duration.
+   */
+  public static final int TRACE_PROFILE = 0x02;    // SQLITE_TRACE_PROFILE
+
+  /**
+   * Event flag for {@link #setTraceListener}: rows returned by statements.
+   */
+  public static final int TRACE_ROW = 0x04;        // SQLITE_TRACE_ROW
+
   /**
    * SQLite memory database name
    */
@@ -385,12 +495,16 @@ public class SQLiteDatabase extends SQLiteClosable implements
    */
   private SQLiteTransactionListener mTransactionListener;
 
-  /** Synchronize on this when accessing the database */
-  private final ReentrantLock mLock = new ReentrantLock(true);
+  /** Synchronize on this when accessing the database, fair unless opened with {@link #NON_FAIR_LOCKING} */
+  private final ReentrantLock mLock;
 
   private long mLockAcquiredWallTime = 0L;
   private long mLockAcquiredThreadTime = 0L;
 
+  /** When the current holder acquired the lock, and the last statement it ran */
+  private long mLockAcquiredNanos = 0L;
+  private String mLockHolderSql;
+
   // limit the frequency of complaints about each database to one within 20 sec
   // unless run command adb shell setprop log.tag.Database VERBOSE
   private static final int LOCK_WARNING_WINDOW_IN_MS = 20000;
@@ -407,6 +521,78 @@ public class SQLiteDatabase extends SQLiteClosable implements
 
   private long mLastLockMessageTime = 0L;
 
+  /**
+   * Read-only connections to the same database file, used to run queries concurrently
+   * with the writes on this connection when write-ahead logging is enabled.
+   * null unless {@link #enableReadConnectionPool(byte[], SQLiteDatabaseHook, int)} was called.
+   */
+  private volatile SQLiteDatabase[] mReadConnections;
+  private int mNextReadConnection;
+
+  /** Whether queries are routed to the read connection pool, see {@link #setReadConnectionRoutingEnabled} */
+  private volatile boolean mReadConnectionRouting;
+
+  /**
+   * The aliases of the databases attached to this connection that the read connections
+   * could not attach: in-memory databases, and databases with a key of their own that
+   * were attached before the pool was enabled. Guarded by the database lock.
+   */
+  private final Set<String> mUnroutedAttachments = new HashSet<String>();
+
+  /** Whether queries must not be routed because of {@link #mUnroutedAttachments} */
+  private volatile boolean mReadConnectionsDiverged;
+
+  private static final Pattern ATTACH_PATTERN = Pattern.compile(
+      "ATTACH\\s+(?:DATABASE\\s+)?(?:'(?:[^']|'')*'|\\S+)\\s+AS\\s+([^\\s;]+)"
+      + "(?:\\s+KEY\\s+(?:'(?:[^']|'')*'|[^\\s;]+))?\\s*;?",
+      Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+  private static final Pattern DETACH_PATTERN = Pattern.compile(
+      "DETACH\\s+(?:DATABASE\\s+)?([^\\s;]+)\\s*;?", Pattern.CASE_INSENSITIVE);
+  private static final Pattern PRAGMA_ASSIGNMENT_PATTERN = Pattern.compile(
+      "PRAGMA\\s+(?:([^\\s.;]+)\\s*\\.\\s*)?(\\w+)\\s*[=(][^;]*;?", Pattern.CASE_INSENSITIVE);
+
+  /** The pragmas that only change the connection they run on, not the database file */
+  private static final Set<String> CONNECTION_PRAGMAS = new HashSet<String>(Arrays.asList(
+      "automatic_index", "busy_timeout", "cache_size", "cache_spill", "case_sensitive_like",
+      "cell_size_check", "foreign_keys", "ignore_check_constraints", "legacy_alter_table",
+      "mmap_size", "query_only", "read_uncommitted", "recursive_triggers",
+      "reverse_unordered_selects", "temp_store", "threads", "trusted_schema"));
+
+  /** The connection a pooled read-only connection belongs to, null otherwise */
+  private SQLiteDatabase mPrimaryConnection;
+
+  /** The statement metrics, shared with the pooled read-only connections */
+  private SQLiteMetrics mMetrics = new SQLiteMetrics();
+
+  /** The lock contention metrics, shared with the pooled read-only connections */
+  private SQLiteLockMetrics mLockMetrics = new SQLiteLockMetrics();
+
+  /** The part of the lock metrics this connection records into */
+  private SQLiteLockMetrics.Stripe mLockStripe = mLockMetrics.assignStripe();
+
+  /** The trace listener, also set on the pooled read-only connections, or null */
+  private SQLiteTraceListener mTraceListener;
+  private int mTraceEvents;
+  private double mTraceSampleRate;
+
+  /**
+   * The executors the asynchronous methods submit to: writes run one at a time in
+   * submission order, queries run concurrently. Created on first use unless set
+   * with {@link #setAsyncExecutors}. All access is synchronized on mAsyncExecutorLock.
+   */
+  private Executor mAsyncReadExecutor;
+  private Executor mAsyncWriteExecutor;
+
+  /** Whether the async executors were created here, and are shut down on close */
+  private boolean mOwnsAsyncExecutors;
+
+  /** Set by {@link #close()}, after which no more async operations are accepted */
+  private boolean mAsyncClosed;
+  private final Object mAsyncExecutorLock = new Object();
+
+  /** How long the threads of the default async executors are kept when idle */
+  private static final int ASYNC_THREAD_KEEP_ALIVE_SECONDS = 30;
+
   // Things related to query logging/sampling for debugging
   // slow/frequent queries during development.  Always log queries
   // which take (by default) 500ms+; shorter queries are sampled
@@ -428,6 +614,15 @@ public class SQLiteDatabase extends SQLiteClosable implements
   /** Used by native code, do not rename */
   /* package */ long mNativeHandle = 0;
 
+  /** The native trace state of this connection. Used by native code, do not rename */
+  private long mNativeTraceContext = 0;
+
+  /** The native cancellation state of this connection. Used by native code, do not rename */
+  private long mNativeCancelContext = 0;
+
+  /** How many operations made this connection cancelable, guarded by the lock */
+  private int mCancelAttachCount = 0;
+
   /** Used to make temp table names unique */
   /* package */ int mTempTableSequence = 0;
 
@@ -449,7 +644,7 @@ public class SQLiteDatabase extends SQLiteClosable implements
    * for each instance of this class, a cache is maintained to store
    * the compiled query statement ids returned by sqlite database.
    *     key = sql statement with "?" for bind args
-   *     value = {@link SQLiteCompiledSql}
+   *     value = a small pool of {@link SQLiteCompiledSql} objects for that sql
    * If an application opens the database and keeps it open during its entire life, then
    * there will not be an overhead of compilation of sql statements by sqlite.
    *
@@ -457,11 +652,34 @@ public class SQLiteDatabase extends SQLiteClosable implements
    * struct created when {@link SQLiteDatabase#openDatabase(String, CursorFactory, int)} is
    * invoked.
    *
-   * this cache has an upper limit of mMaxSqlCacheSize (settable by calling the method
-   * (@link setMaxCacheSize(int)}). its default is 0 - i.e., no caching by default because
-   * most of the apps don't use "?" syntax in their sql, caching is not useful for them.
+   * a {@link SQLiteCompiledSql} can only be used by one {@link SQLiteProgram} at a time, so
+   * up to MAX_SQL_POOL_SIZE of them are kept per sql statement; this lets nested or
+   * concurrent users of the same sql (e.g., two open cursors over the same query) reuse
+   * compiled statements instead of compiling and finalizing a new one each time.
+   *
+   * this cache has an upper limit of mMaxSqlCacheSize sql statements (settable by calling
+   * the method (@link setMaxCacheSize(int)}). once the limit is reached, the pool of the
+   * least recently used sql statement is evicted to make room for the new one. an evicted
+   * {@link SQLiteCompiledSql} is released right away if no {@link SQLiteProgram} is using
+   * it; otherwise the program using it releases it when it is done, since it is no longer
+   * in the cache.
+   *
+   * all access to this map and to {@link SQLiteCompiledSql#mInCache} is synchronized on
+   * the map.
    */
-  /* package */ Map<String, SQLiteCompiledSql> mCompiledQueries = new HashMap<String, SQLiteCompiledSql>();
+  /* package */ Map<String, List<SQLiteCompiledSql>> mCompiledQueries =
+      new LinkedHashMap<String, List<SQLiteCompiledSql>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<SQLiteCompiledSql>> eldest) {
+          if (size() <= mMaxSqlCacheSize) {
+            return false;
+          }
+          evictFromCompiledQueries(eldest.getKey(), eldest.getValue());
+          return true;
+        }
+      };
+  /** max number of {@link SQLiteCompiledSql} objects cached for a single sql statement */
+  private static final int MAX_SQL_POOL_SIZE = 4;
   /**
    * @hide
    */
@@ -469,6 +687,24 @@ public class SQLiteDatabase extends SQLiteClosable implements
   private int mMaxSqlCacheSize = MAX_SQL_CACHE_SIZE; // max cache size per Database instance
   private int mCacheFullWarnings;
   private static final int MAX_WARNINGS_ON_CACHESIZE_CONDITION = 1;
+  private int mNumCacheEvictions;
+
+  /**
+   * the sql generated by {@link #insertWithOnConflict} and {@link #updateWithOnConflict},
+   * keyed by table, conflict algorithm and ordered column set. handing the same String
+   * instance to the compiled-sql cache again avoids rebuilding it and rehashing it
+   * (String caches its hash code) on every call.
+   *
+   * bounded to mMaxSqlCacheSize entries, since sql beyond that would miss the compiled-sql
+   * cache anyway. all access to this map is synchronized on the map.
+   */
+  private final Map<SqlTemplateKey, String> mSqlTemplates =
+      new LinkedHashMap<SqlTemplateKey, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SqlTemplateKey, String> eldest) {
+          return size() > mMaxSqlCacheSize;
+        }
+      };
 
   /** {@link DatabaseErrorHandler} to be used when SQLite returns any of the following errors
    *    Corruption
@@ -570,14 +806,7 @@ public class SQLiteDatabase extends SQLiteClosable implements
    */
   /* package */ void lock() {
     if (!mLockingEnabled) return;
-    mLock.lock();
-    if (SQLiteDebug.DEBUG_LOCK_TIME_TRACKING) {
-      if (mLock.getHoldCount() == 1) {
-        // Use elapsed real-time since the CPU may sleep when waiting for IO
-        mLockAcquiredWallTime = SystemClock.elapsedRealtime();
-        mLockAcquiredThreadTime = Debug.threadCpuTimeNanos();
-      }
-    }
+    acquireLock();
   }
 
   /**
@@ -589,9 +818,20 @@ public class SQLiteDatabase extends SQLiteClosable implements
    * @see #unlockForced()
    */
   private void lockForced() {
+    acquireLock();
+  }
+
+  private void acquireLock() {
+    long waitStart = System.nanoTime();
+    boolean contended = mLock.isLocked() && !mLock.isHeldByCurrentThread();
+    int queueLength = contended ? mLock.getQueueLength() : 0;
     mLock.lock();
-    if (SQLiteDebug.DEBUG_LOCK_TIME_TRACKING) {
-      if (mLock.getHoldCount() == 1) {
+    if (mLock.getHoldCount() == 1) {
+      long now = System.nanoTime();
+      mLockAcquiredNanos = now;
+      mLockHolderSql = null;
+      mLockStripe.recordAcquire(now - waitStart, contended, queueLength);
+      if (SQLiteDebug.DEBUG_LOCK_TIME_TRACKING) {
         // Use elapsed real-time since the CPU may sleep when waiting for IO
         mLockAcquiredWallTime = SystemClock.elapsedRealtime();
         mLockAcquiredThreadTime = Debug.threadCpuTimeNanos();
@@ -606,12 +846,7 @@ public class SQLiteDatabase extends SQLiteClosable implements
    */
   /* package */ void unlock() {
     if (!mLockingEnabled) return;
-    if (SQLiteDebug.DEBUG_LOCK_TIME_TRACKING) {
-      if (mLock.getHoldCount() == 1) {
-        checkLockHoldTime();
-      }
-    }
-    mLock.unlock();
+    releaseLock();
   }
 
   /**
@@ -620,12 +855,69 @@ public class SQLiteDatabase extends SQLiteClosable implements
    * @see #unlockForced()
    */
   private void unlockForced() {
-    if (SQLiteDebug.DEBUG_LOCK_TIME_TRACKING) {
-      if (mLock.getHoldCount() == 1) {
+    releaseLock();
+  }
+
+  private void releaseLock() {
+    SQLiteLockMetrics.LockHold longHold = null;
+    if (mLock.getHoldCount() == 1) {
+      if (SQLiteDebug.DEBUG_LOCK_TIME_TRACKING) {
         checkLockHoldTime();
       }
+      longHold = mLockStripe.recordRelease(System.nanoTime() - mLockAcquiredNanos, mLockHolderSql);
+      mLockHolderSql = null;
     }
     mLock.unlock();
+    if (longHold != null) {
+      // report it once the lock is released so that a slow listener does not add to the hold
+      mLockMetrics.notifyLongHold(longHold);
+    }
+  }
+
+  /**
+   * Makes the statements of this connection cancelable by {@link #cancel()} until the
+   * matching {@link #detachCancellation()}. Calls nest; only the outermost clears a
+   * cancellation left over from an earlier operation. Must be called with the lock held.
+   */
+  /* package */ void attachCancellation() {
+    if (mCancelAttachCount++ == 0) {
+      native_resetCancel(true);
+    }
+  }
+
+  /**
+   * Ends a {@link #attachCancellation()}. The outermost call clears the cancel flag, so
+   * that a cancellation never reaches a statement of a later operation. Must be called
+   * with the lock held.
+   */
+  /* package */ void detachCancellation() {
+    if (--mCancelAttachCount == 0) {
+      native_resetCancel(false);
+    }
+  }
+
+  /**
+   * Makes the statement being stepped on this connection fail with
+   * SQLITE_INTERRUPT at its next progress check, from any thread and without the lock.
+   * Unlike sqlite3_interrupt, this only aborts statements while they are stepped, not
+   * ones that are merely kept active between fills, such as those of streaming and
+   * keyset cursors, and it has no effect unless cancellation is attached. Must not be
+   * called while the database is being closed.
+   */
+  /* package */ void cancel() {
+    native_cancel();
+  }
+
+  /**
+   * Called right before running a statement: remembers its SQL as the one holding the
+   * lock, for {@link SQLiteLockMetrics#getLongestHolds()}, and returns the start time
+   * of the statement for the {@link SQLiteMetrics}.
+   */
+  /* package */ long markStatementStart(String sql) {
+    if (mLock.isHeldByCurrentThread()) {
+      mLockHolderSql = sql;
+    }
+    return System.nanoTime();
   }
 
   private void checkLockHoldTime() {
@@ -694,13 +986,15 @@ public class SQLiteDatabase extends SQLiteClosable implements
   }
 
   /**
-   * Sets the journal mode of the database to DELETE (the default mode)
+   * Sets the journal mode of the database to DELETE (the default mode).
+   * Any read connection pool is closed first.
    */
   public void disableWriteAheadLogging() {
     if(inTransaction()) {
       String message = "Write Ahead Logging cannot be disabled while in a transaction";
       throw new IllegalStateException(message);
     }
+    closeReadConnectionPool();
     String command = "PRAGMA journal_mode = DELETE;";
     rawExecSQL(command);
   }
@@ -713,6 +1007,473 @@ public class SQLiteDatabase extends SQLiteClosable implements
     return result.first ? result.second.equals("wal") : result.first;
   }
 
+  /**
+   * Opens a pool of read-only connections to this database, keyed with the given
+   * password, so that queries can run concurrently with writes and with each other.
+   * Write-ahead logging must already be enabled on this database.
+   *
+   * <p>Queries only run on the pool once routing is turned on with
+   * {@link #setReadConnectionRoutingEnabled(boolean)}. Every read connection attaches
+   * the databases attached to this connection and takes the current values of its
+   * connection settings, such as {@code foreign_keys} or {@code cache_size}, of the
+   * main database. While the pool is open, ATTACH, DETACH and connection PRAGMA
+   * statements run through {@link #execSQL} or {@link #rawExecSQL} are run on the read
+   * connections as well. None of these statements are kept, so the KEY of an ATTACH
+   * does not stay in memory.</p>
+   *
+   * <p>The read connections attach the databases that were attached before the pool
+   * was enabled without a key, that is with the key of the main database. If one of
+   * them has a key of its own, or is not a file, queries are not routed to the pool
+   * until it is detached; attach such databases after enabling the pool instead. The
+   * pool is closed by {@link #disableWriteAheadLogging()} and {@link #close()}.</p>
+   *
+   * @param password the password this database was opened with
+   * @param hook to run on pre/post key events of each read connection (may be null)
+   * @param size the number of read connections to open
+   *
+   * @throws IllegalStateException if write-ahead logging is not enabled, the database is
+   * read-only or in-memory, a pool is already open, or a transaction is in progress
+   * @throws IllegalArgumentException if size is less than 1
+   * @throws SQLiteException if a read connection cannot be opened
+   */
+  public void enableReadConnectionPool(byte[] password, SQLiteDatabaseHook hook, int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("size must be >= 1, was " + size);
+    }
+    if (!isOpen()) {
+      throw new IllegalStateException("database not open");
+    }
+    if (inTransaction()) {
+      String message = "Read connection pool cannot be enabled while in a transaction";
+      throw new IllegalStateException(message);
+    }
+    if (mPrimaryConnection != null || isReadOnly() || getPath().equals(MEMORY)) {
+      throw new IllegalStateException("Read connection pool requires a writable file database");
+    }
+    if (mReadConnections != null) {
+      throw new IllegalStateException("Read connection pool is already enabled");
+    }
+    if (!isWriteAheadLoggingEnabled()) {
+      throw new IllegalStateException("Read connection pool requires Write Ahead Logging");
+    }
+    SQLiteDatabase[] connections = new SQLiteDatabase[size];
+    try {
+      for (int i = 0; i < size; i++) {
+        connections[i] = openDatabase(mPath, password, mFactory,
+                                      OPEN_READONLY | (mFlags & NON_FAIR_LOCKING), hook, mErrorHandler);
+        connections[i].mPrimaryConnection = this;
+        connections[i].mMetrics = mMetrics;
+        connections[i].mLockMetrics = mLockMetrics;
+        connections[i].mLockStripe = mLockMetrics.assignStripe();
+        if (mTraceListener != null) {
+          connections[i].setTraceListener(mTraceListener, mTraceEvents, mTraceSampleRate);
+        }
+      }
+      lock();
+      try {
+        copyConnectionSetup(connections);
+        mReadConnections = connections;
+      } finally {
+        unlock();
+      }
+    } catch (RuntimeException e) {
+      for (SQLiteDatabase connection : connections) {
+        if (connection != null) connection.close();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a pool of read-only connections to this database.
+   *
+   * @see #enableReadConnectionPool(byte[], SQLiteDatabaseHook, int)
+   */
+  public void enableReadConnectionPool(char[] password, SQLiteDatabaseHook hook, int size) {
+    enableReadConnectionPool(getBytes(password), hook, size);
+  }
+
+  /**
+   * @return the number of read-only connections in the pool, 0 if it is not enabled
+   */
+  public int getReadConnectionPoolSize() {
+    SQLiteDatabase[] connections = mReadConnections;
+    return connections == null ? 0 : connections.length;
+  }
+
+  /**
+   * Turns the routing of queries to the read connection pool on or off; it is off by
+   * default. When on, SELECT statements run through {@link #rawQuery},
+   * {@link #rawQueryWithFactory}, the query methods and {@link #queryAsync} go to a
+   * free read connection, unless the calling thread holds the database lock (e.g. it is
+   * in a transaction), in which case they run on this connection so that they see the
+   * uncommitted changes of the transaction. All other statements always run on this
+   * connection.
+   *
+   * <p>A read connection only shares the database files with this connection: it does
+   * not see the TEMP tables, views and triggers of this connection, nor attached
+   * {@code :memory:} databases, and settings made other than as described for
+   * {@link #enableReadConnectionPool(byte[], SQLiteDatabaseHook, int)} are not carried
+   * over. Queries that depend on those must be run while holding the database lock,
+   * e.g. in a transaction, or routing must be left off. Queries are not routed while a
+   * database the read connections could not attach is attached.</p>
+   *
+   * @param enabled true to route queries to the read connection pool
+   */
+  public void setReadConnectionRoutingEnabled(boolean enabled) {
+    mReadConnectionRouting = enabled;
+  }
+
+  /**
+   * @return true if queries are routed to the read connection pool
+   * @see #setReadConnectionRoutingEnabled(boolean)
+   */
+  public boolean isReadConnectionRoutingEnabled() {
+    return mReadConnectionRouting;
+  }
+
+  private void closeReadConnectionPool() {
+    SQLiteDatabase[] connections;
+    // taken under the lock, as getReadConnection and the setup replay read it
+    lock();
+    try {
+      connections = mReadConnections;
+      mReadConnections = null;
+      mUnroutedAttachments.clear();
+      mReadConnectionsDiverged = false;
+    } finally {
+      unlock();
+    }
+    if (connections == null) return;
+    for (SQLiteDatabase connection : connections) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Returns the read connection the given sql should run on, locked, or null if it
+   * should run on this connection. The caller runs the sql and then unlocks the
+   * connection; holding its lock keeps the connection from being closed by
+   * {@link #closeReadConnectionPool()} in the meantime. Prefers a connection whose
+   * lock is free and falls back to round robin when all of them are busy.
+   */
+  private SQLiteDatabase getReadConnection(String sql) {
+    SQLiteDatabase[] connections = mReadConnections;
+    if (connections == null || !mReadConnectionRouting || mReadConnectionsDiverged
+        || mLock.isHeldByCurrentThread()) {
+      return null;
+    }
+    String trimmed = sql.trim();
+    if (trimmed.length() < 6 || !trimmed.substring(0, 6).equalsIgnoreCase("SELECT")) {
+      return null;
+    }
+    SQLiteDatabase connection = null;
+    synchronized (connections) {
+      int count = connections.length;
+      for (int i = 0; i < count && connection == null; i++) {
+        int index = (mNextReadConnection + i) % count;
+        if (!connections[index].mLock.isLocked()) {
+          mNextReadConnection = (index + 1) % count;
+          connection = connections[index];
+        }
+      }
+      if (connection == null) {
+        connection = connections[mNextReadConnection];
+        mNextReadConnection = (mNextReadConnection + 1) % count;
+      }
+    }
+    connection.lock();
+    if (!connection.isOpen()) {
+      // the pool was closed since it was read
+      connection.unlock();
+      return null;
+    }
+    return connection;
+  }
+
+  /**
+   * Sets up new read connections like this one: they attach the databases attached to
+   * this connection, with the key of the main database, and take the current values of
+   * the connection pragmas of the main database. The aliases of the databases they
+   * cannot attach or read are put in {@link #mUnroutedAttachments}. Called with the
+   * lock held, before the connections are published.
+   */
+  private void copyConnectionSetup(SQLiteDatabase[] connections) {
+    List<Pair<String, String>> attached = getAttachedDbs(this);
+    List<String> pragmas = new ArrayList<String>();
+    for (String pragma : CONNECTION_PRAGMAS) {
+      // write-only pragmas such as case_sensitive_like return no row
+      Pair<Boolean, String> value = getResultFromPragma("PRAGMA " + pragma + ";");
+      if (value.first && value.second != null) {
+        pragmas.add("PRAGMA " + pragma + " = " + value.second + ";");
+      }
+    }
+    for (SQLiteDatabase connection : connections) {
+      for (String pragma : pragmas) {
+        connection.rawExecSQL(pragma);
+      }
+    }
+    mUnroutedAttachments.clear();
+    for (Pair<String, String> database : attached) {
+      if ("main".equalsIgnoreCase(database.first) || "temp".equalsIgnoreCase(database.first)) {
+        continue;
+      }
+      String alias = quoteName(database.first);
+      String file = database.second;
+      int count = 0;
+      if (file != null && file.length() > 0) {
+        while (count < connections.length && connections[count].attachWithMainKey(alias, file)) {
+          count++;
+        }
+      }
+      if (count < connections.length) {
+        // attached on all the read connections or on none of them
+        for (int i = 0; i < count; i++) {
+          connections[i].rawExecSQL("DETACH DATABASE " + alias);
+        }
+        mUnroutedAttachments.add(database.first.toLowerCase(Locale.US));
+      }
+    }
+    mReadConnectionsDiverged = !mUnroutedAttachments.isEmpty();
+  }
+
+  /**
+   * Attaches a database file with the key of the main database.
+   *
+   * @param alias the quoted name to attach it as
+   * @return false if the file could not be attached or read with that key
+   */
+  private boolean attachWithMainKey(String alias, String file) {
+    try {
+      execSQL("ATTACH DATABASE ? AS " + alias, new Object[]{file});
+    } catch (SQLException e) {
+      return false;
+    }
+    try {
+      Cursor cursor = rawQuery("SELECT count(*) FROM " + alias + ".sqlite_master", new Object[]{});
+      try {
+        cursor.moveToFirst();
+      } finally {
+        cursor.close();
+      }
+      return true;
+    } catch (SQLException e) {
+      rawExecSQL("DETACH DATABASE " + alias);
+      return false;
+    }
+  }
+
+  /**
+   * Runs sql run on this connection on the open read connections as well if it is an
+   * ATTACH, a DETACH or a connection PRAGMA assignment. Nothing is kept, so the key of
+   * an ATTACH ... KEY only lives as long as the call. Called with the lock held, after
+   * the sql ran successfully.
+   */
+  private void forwardConnectionSetup(String sql, Object[] bindArgs) {
+    SQLiteDatabase[] connections = mReadConnections;
+    if (connections == null || mPrimaryConnection != null) return;
+    String trimmed = sql.trim();
+    Matcher matcher;
+    if ((matcher = DETACH_PATTERN.matcher(trimmed)).matches()) {
+      if (mUnroutedAttachments.remove(unquoteName(matcher.group(1)))) {
+        // the read connections never attached it
+        mReadConnectionsDiverged = !mUnroutedAttachments.isEmpty();
+        return;
+      }
+    } else if (!ATTACH_PATTERN.matcher(trimmed).matches()
+               && !((matcher = PRAGMA_ASSIGNMENT_PATTERN.matcher(trimmed)).matches()
+                    && CONNECTION_PRAGMAS.contains(matcher.group(2).toLowerCase(Locale.US)))) {
+      return;
+    }
+    try {
+      for (SQLiteDatabase connection : connections) {
+        if (bindArgs == null) {
+          connection.rawExecSQL(sql);
+        } else {
+          connection.execSQL(sql, bindArgs);
+        }
+      }
+    } catch (RuntimeException e) {
+      // a read connection that differs from this one would give wrong results
+      if(BuildConfig.DEBUG){
+        Log.w(TAG, "closing the read connection pool, a read connection could not be set up", e);
+      }
+      closeReadConnectionPool();
+    }
+  }
+
+  private static String quoteName(String name) {
+    return "\"" + name.replace("\"", "\"\"") + "\"";
+  }
+
+  private static String unquoteName(String name) {
+    int length = name.length();
+    if (length > 1 && "\"'`[".indexOf(name.charAt(0)) >= 0) {
+      name = name.substring(1, length - 1);
+    }
+    return name.toLowerCase(Locale.US);
+  }
+
+  /**
+   * Returns the connection writes should run on: the connection this pooled
+   * read-only connection belongs to, or this connection otherwise.
+   */
+  /* package */ SQLiteDatabase getWriteConnection() {
+    return mPrimaryConnection != null ? mPrimaryConnection : this;
+  }
+
+  /**
+   * Returns the per-statement metrics of this database: the number of executions,
+   * their latency distribution, the rows read or changed, the window fills and the
+   * compiled-sql cache hits of every statement run on this connection and on its read
+   * connection pool. Recording is always on unless turned off with
+   * {@link SQLiteMetrics#setEnabled(boolean)}.
+   *
+   * @return the metrics registry of this database
+   */
+  public SQLiteMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  /**
+   * Returns the lock contention metrics of this database and its read connection pool:
+   * the distributions of the time threads waited for and held the database lock, the
+   * number of threads queued on it when it was contended, and the longest holds with
+   * the last statement they ran. Threads blocked in {@link #beginTransaction()} or in a
+   * query while another thread holds the lock show up as wait time here.
+   *
+   * @return the lock metrics of this database
+   */
+  public SQLiteLockMetrics getLockMetrics() {
+    return mLockMetrics;
+  }
+
+  /**
+   * Sets a listener that receives the trace events of the statements run on this
+   * database and its read connection pool, as reported by sqlite3_trace_v2. To keep
+   * the cost low only a sample of the statement runs is traced: each run is picked
+   * with the given probability when it starts, and all the requested events of a
+   * picked run are delivered. Replaces the previous listener. The listener runs while
+   * the database lock and the sqlite mutex are held, so it must not call back into the
+   * database, see {@link SQLiteTraceListener}; key statements are never reported.
+   *
+   * @param listener the listener, or null to stop tracing
+   * @param events the events to deliver, a combination of {@link #TRACE_STATEMENT},
+   * {@link #TRACE_PROFILE} and {@link #TRACE_ROW}
+   * @param sampleRate the probability, from 0 to 1, of a statement run being traced
+   *
+   * @throws IllegalArgumentException if sampleRate is not between 0 and 1
+   * @throws IllegalStateException if the database is not open
+   */
+  public void setTraceListener(SQLiteTraceListener listener, int events, double sampleRate) {
+    if (!(sampleRate >= 0 && sampleRate <= 1)) {
+      throw new IllegalArgumentException("sampleRate must be between 0 and 1, was " + sampleRate);
+    }
+    lock();
+    try {
+      if (!isOpen()) {
+        throw new IllegalStateException("database not open");
+      }
+      native_setTraceListener(listener, events & (TRACE_STATEMENT | TRACE_PROFILE | TRACE_ROW),
+                              sampleRate);
+      mTraceListener = listener;
+      mTraceEvents = events;
+      mTraceSampleRate = sampleRate;
+    } finally {
+      unlock();
+    }
+    SQLiteDatabase[] connections = mReadConnections;
+    if (connections != null) {
+      for (SQLiteDatabase connection : connections) {
+        connection.setTraceListener(listener, events, sampleRate);
+      }
+    }
+  }
+
+  /**
+   * Sets the executors the asynchronous methods, such as {@link #queryAsync} and
+   * {@link #execSQLAsync}, submit their operations to. By default a single thread runs
+   * the writes and one thread per read connection (see
+   * {@link #enableReadConnectionPool(byte[], SQLiteDatabaseHook, int)}), or a single
+   * one if there is no pool, runs the queries; both queue without bound. Setting
+   * executors with bounded queues lets the submitting threads be held back, or
+   * rejected, when the database falls behind. Executors set here are not shut down
+   * by {@link #close()}.
+   *
+   * @param readExecutor runs the queries
+   * @param writeExecutor runs everything else; it must run its tasks one at a time
+   * in submission order, e.g. a single-thread executor
+   *
+   * @throws IllegalArgumentException if either executor is null
+   */
+  public void setAsyncExecutors(Executor readExecutor, Executor writeExecutor) {
+    if (readExecutor == null || writeExecutor == null) {
+      throw new IllegalArgumentException("async executors must not be null");
+    }
+    synchronized (mAsyncExecutorLock) {
+      if (mOwnsAsyncExecutors) {
+        // let the operations already submitted to them finish
+        ((ExecutorService)mAsyncReadExecutor).shutdown();
+        ((ExecutorService)mAsyncWriteExecutor).shutdown();
+      }
+      mAsyncReadExecutor = readExecutor;
+      mAsyncWriteExecutor = writeExecutor;
+      mOwnsAsyncExecutors = false;
+    }
+  }
+
+  private void submitAsync(SQLiteFuture<?> future, boolean write) {
+    Executor executor;
+    synchronized (mAsyncExecutorLock) {
+      if (mAsyncClosed || !isOpen()) {
+        throw new IllegalStateException("database not open");
+      }
+      if (mAsyncWriteExecutor == null) {
+        mAsyncReadExecutor = newAsyncExecutor(Math.max(1, getReadConnectionPoolSize()),
+                                              "SQLiteDatabase read");
+        mAsyncWriteExecutor = newAsyncExecutor(1, "SQLiteDatabase write");
+        mOwnsAsyncExecutors = true;
+      }
+      executor = write ? mAsyncWriteExecutor : mAsyncReadExecutor;
+    }
+    executor.execute(future);
+  }
+
+  private static ThreadPoolExecutor newAsyncExecutor(int threads, final String name) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+        ASYNC_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mThreadCount = new AtomicInteger();
+
+          public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, name + " #" + mThreadCount.incrementAndGet());
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Shuts down the async executors created by this database, cancelling the
+   * operations that have not started yet, and stops accepting new ones.
+   */
+  private void shutdownAsyncExecutors() {
+    synchronized (mAsyncExecutorLock) {
+      if (mOwnsAsyncExecutors) {
+        for (Runnable pending : ((ExecutorService)mAsyncReadExecutor).shutdownNow()) {
+          ((Future<?>)pending).cancel(false);
+        }
+        for (Runnable pending : ((ExecutorService)mAsyncWriteExecutor).shutdownNow()) {
+          ((Future<?>)pending).cancel(false);
+        }
+      }
+      mAsyncReadExecutor = null;
+      mAsyncWriteExecutor = null;
+      mOwnsAsyncExecutors = false;
+      mAsyncClosed = true;
+    }
+  }
+
   /**
    * Enables or disables foreign key constraints
    * @param enable used to determine whether or not foreign key constraints are on
@@ -1241,13 +2002,53 @@ public class SQLiteDatabase extends SQLiteClosable implements
    */
   public static SQLiteDatabase openDatabase(String path, byte[] password, CursorFactory factory, int flags,
                                             SQLiteDatabaseHook hook, DatabaseErrorHandler errorHandler) {
+    return openDatabase(path, password, null, factory, flags, hook, errorHandler);
+  }
+
+  /**
+   * Open the database according to the flags {@link #OPEN_READWRITE}
+   * {@link #OPEN_READONLY} {@link #CREATE_IF_NECESSARY} and/or {@link #NO_LOCALIZED_COLLATORS}
+   * with its raw key instead of its passphrase, which skips the PBKDF2 key derivation.
+   *
+   * <p>The raw key comes from {@link #exportRawKey(byte[])} or from the application, see
+   * {@link SQLiteRawKey}. Cipher settings
+   * that the hook applies in {@link SQLiteDatabaseHook#preKey} must be the ones the
+   * database was created with; the KDF settings are irrelevant since no key is
+   * derived.</p>
+   *
+   * @param path to database file to open and/or create
+   * @param rawKey the raw key of the database, which stays valid and open
+   * @param factory an optional factory class that is called to instantiate a
+   *            cursor when query is called, or null for default
+   * @param flags to control database access mode and other options
+   * @param hook to run on pre/post key events (may be null)
+   * @param errorHandler The {@link DatabaseErrorHandler} to be used when sqlite reports database
+   * corruption (or null for default).
+   *
+   * @return the newly opened database
+   *
+   * @throws SQLiteException if the database cannot be opened
+   * @throws IllegalArgumentException if the database path or the raw key is null
+   * @throws IllegalStateException if the raw key has been closed
+   */
+  public static SQLiteDatabase openDatabase(String path, SQLiteRawKey rawKey, CursorFactory factory, int flags,
+                                            SQLiteDatabaseHook hook, DatabaseErrorHandler errorHandler) {
+    if (rawKey == null) {
+      throw new IllegalArgumentException("rawKey should not be null");
+    }
+    return openDatabase(path, null, rawKey, factory, flags, hook, errorHandler);
+  }
+
+  private static SQLiteDatabase openDatabase(String path, byte[] password, SQLiteRawKey rawKey,
+                                             CursorFactory factory, int flags,
+                                             SQLiteDatabaseHook hook, DatabaseErrorHandler errorHandler) {
     SQLiteDatabase sqliteDatabase = null;
     DatabaseErrorHandler myErrorHandler = (errorHandler != null) ? errorHandler : new DefaultDatabaseErrorHandler();
 
     try {
       // Open the database.
       sqliteDatabase = new SQLiteDatabase(path, factory, flags, myErrorHandler);
-      sqliteDatabase.openDatabaseInternal(password, hook);
+      sqliteDatabase.openDatabaseInternal(password, rawKey, hook);
     } catch (SQLiteDatabaseCorruptException e) {
       // Try to recover from this, if possible.
       // FUTURE TBD: should we consider this for other open failures?
@@ -1263,7 +2064,7 @@ public class SQLiteDatabase extends SQLiteClosable implements
 
       // try *once* again:
       sqliteDatabase = new SQLiteDatabase(path, factory, flags, myErrorHandler);
-      sqliteDatabase.openDatabaseInternal(password, hook);
+      sqliteDatabase.openDatabaseInternal(password, rawKey, hook);
     }
 
     if (SQLiteDebug.DEBUG_SQL_STATEMENTS) {
@@ -1401,6 +2202,8 @@ public class SQLiteDatabase extends SQLiteClosable implements
     if (!isOpen()) {
       return; // already closed
     }
+    closeReadConnectionPool();
+    shutdownAsyncExecutors();
     lock();
     try {
       closeClosable();
@@ -1712,6 +2515,50 @@ public class SQLiteDatabase extends SQLiteClosable implements
         }
     }
 
+    /**
+     * Opens a handle for incremental I/O on a BLOB value of the main database, to stream
+     * it in constant memory instead of reading it whole through a cursor.
+     *
+     * @param table the table holding the value
+     * @param column the column holding the value
+     * @param rowId the rowid of the row holding the value
+     * @param writable true to open the value for writing as well as reading
+     *
+     * @return a {@link SQLiteBlob} to be closed once done
+     *
+     * @throws SQLException if the row does not exist, or its value is not a BLOB or text
+     * @throws IllegalStateException if the database is not open
+     * @throws IllegalArgumentException if the table or column is null
+     */
+    public SQLiteBlob openBlob(String table, String column, long rowId, boolean writable) {
+        return openBlob("main", table, column, rowId, writable);
+    }
+
+    /**
+     * Same as {@link #openBlob(String, String, long, boolean)} for a value of an
+     * attached database.
+     *
+     * @param database the name of the database holding the table, e.g. "main" or the
+     *            name of an attached database
+     *
+     * @throws IllegalArgumentException if the database, table or column is null
+     */
+    public SQLiteBlob openBlob(String database, String table, String column, long rowId,
+                               boolean writable) {
+        if (database == null || table == null || column == null) {
+            throw new IllegalArgumentException("database, table and column should not be null");
+        }
+        lock();
+        try {
+            if (!isOpen()) {
+                throw new IllegalStateException("database not open");
+            }
+            return new SQLiteBlob(this, database, table, column, rowId, writable);
+        } finally {
+            unlock();
+        }
+    }
+
     /**
      * Query the given URL, returning a {@link Cursor} over the result set.
      *
@@ -1887,6 +2734,58 @@ public class SQLiteDatabase extends SQLiteClosable implements
                      having, orderBy, limit);
     }
 
+    /**
+     * Query the given URL, returning a {@link Cursor} over the result set, which can be
+     * cancelled while it runs.
+     *
+     * @param distinct true if you want each row to be unique, false otherwise.
+     * @param table The table name to compile the query against.
+     * @param columns A list of which columns to return. Passing null will
+     *            return all columns, which is discouraged to prevent reading
+     *            data from storage that isn't going to be used.
+     * @param selection A filter declaring which rows to return, formatted as an
+     *            SQL WHERE clause (excluding the WHERE itself). Passing null
+     *            will return all rows for the given table.
+     * @param selectionArgs You may include ?s in selection, which will be
+     *         replaced by the values from selectionArgs, in order that they
+     *         appear in the selection. The values will be bound as Strings.
+     * @param groupBy A filter declaring how to group rows, formatted as an SQL
+     *            GROUP BY clause (excluding the GROUP BY itself). Passing null
+     *            will cause the rows to not be grouped.
+     * @param having A filter declare which row groups to include in the cursor,
+     *            if row grouping is being used, formatted as an SQL HAVING
+     *            clause (excluding the HAVING itself). Passing null will cause
+     *            all row groups to be included, and is required when row
+     *            grouping is not being used.
+     * @param orderBy How to order the rows, formatted as an SQL ORDER BY clause
+     *            (excluding the ORDER BY itself). Passing null will use the
+     *            default sort order, which may be unordered.
+     * @param limit Limits the number of rows returned by the query,
+     *            formatted as LIMIT clause. Passing null denotes no LIMIT clause.
+     * @param cancellationSignal cancels the query, see
+     *            {@link SQLiteCursor#setCancellationSignal}; may be null
+     *
+     * @return A {@link Cursor} object, which is positioned before the first entry. Note that
+     * {@link Cursor}s are not synchronized, see the documentation for more details.
+     *
+     * @throws SQLiteException if there is an issue executing the sql or the SQL string is invalid
+     * @throws IllegalStateException if the database is not open
+     * @throws android.os.OperationCanceledException if the query is cancelled
+     *
+     * @see Cursor
+     */
+    public Cursor query(boolean distinct, String table, String[] columns,
+                        String selection, String[] selectionArgs, String groupBy,
+                        String having, String orderBy, String limit,
+                        CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+        return withCancellationSignal(query(distinct, table, columns, selection, selectionArgs,
+                                            groupBy, having, orderBy, limit),
+                                      cancellationSignal);
+    }
+
     /**
      * Runs the provided SQL and returns a {@link Cursor} over the result set.
      *
@@ -1905,6 +2804,48 @@ public class SQLiteDatabase extends SQLiteClosable implements
         return rawQueryWithFactory(null, sql, selectionArgs, null);
     }
 
+    /**
+     * Runs the provided SQL and returns a {@link Cursor} over the result set, which can
+     * be cancelled while it runs.
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param selectionArgs You may include ?s in where clause in the query,
+     *     which will be replaced by the values from selectionArgs. The
+     *     values will be bound as Strings.
+     * @param cancellationSignal cancels the query, see
+     *     {@link SQLiteCursor#setCancellationSignal}; may be null
+     *
+     * @return A {@link Cursor} object, which is positioned before the first entry. Note that
+     * {@link Cursor}s are not synchronized, see the documentation for more details.
+     *
+     * @throws SQLiteException if there is an issue executing the sql or the SQL string is invalid
+     * @throws IllegalStateException if the database is not open
+     * @throws android.os.OperationCanceledException if the query is cancelled
+     */
+    public Cursor rawQuery(String sql, String[] selectionArgs,
+                           CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+        return withCancellationSignal(rawQueryWithFactory(null, sql, selectionArgs, null),
+                                      cancellationSignal);
+    }
+
+    /**
+     * Sets the cancellation signal on the SQLiteCursor the given cursor wraps. Cursors
+     * of other types, made by a custom {@link CursorFactory}, can't be cancelled.
+     */
+    private static Cursor withCancellationSignal(Cursor cursor,
+                                                 CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null && cursor instanceof net.sqlcipher.CursorWrapper) {
+            android.database.Cursor wrapped = ((net.sqlcipher.CursorWrapper)cursor).getWrappedCursor();
+            if (wrapped instanceof SQLiteCursor) {
+                ((SQLiteCursor)wrapped).setCancellationSignal(cancellationSignal);
+            }
+        }
+        return cursor;
+    }
+
     /**
      * Determines the total size in bytes of the query results, and the largest
      * single row in bytes for the query.
@@ -1956,6 +2897,14 @@ public class SQLiteDatabase extends SQLiteClosable implements
         if (!isOpen()) {
             throw new IllegalStateException("database not open");
         }
+        SQLiteDatabase readConnection = getReadConnection(sql);
+        if (readConnection != null) {
+            try {
+                return readConnection.rawQuery(sql, args);
+            } finally {
+                readConnection.unlock();
+            }
+        }
         long timeStart = 0;
         if (Config.LOGV || mSlowQueryThreshold != -1) {
             timeStart = System.currentTimeMillis();
@@ -2006,6 +2955,14 @@ public class SQLiteDatabase extends SQLiteClosable implements
         if (!isOpen()) {
             throw new IllegalStateException("database not open");
         }
+        SQLiteDatabase readConnection = getReadConnection(sql);
+        if (readConnection != null) {
+            try {
+                return readConnection.rawQueryWithFactory(cursorFactory, sql, selectionArgs, editTable);
+            } finally {
+                readConnection.unlock();
+            }
+        }
         long timeStart = 0;
 
         if (Config.LOGV || mSlowQueryThreshold != -1) {
@@ -2065,6 +3022,32 @@ public class SQLiteDatabase extends SQLiteClosable implements
         return cursorWrapper;
     }
 
+    /**
+     * Runs the provided SQL and returns a forward-only streaming cursor over the result
+     * set, which reads batchSize rows at a time by continuing to step the query and never
+     * counts or holds the whole result set, see {@link SQLiteCursor#setStreaming(int)}.
+     * Meant for reading large results front to back, e.g. for exports.
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param args You may include ?s in where clause in the query,
+     *     which will be replaced by the values from args. The
+     *     values will be bound by their type.
+     * @param batchSize the number of rows to read at a time
+     * @return A {@link Cursor} object, which is positioned before the first entry. Its
+     * count is only exact once it has moved past the last row.
+     *
+     * @throws SQLiteException if there is an issue executing the sql or the SQL string is invalid
+     * @throws IllegalStateException if the database is not open
+     */
+    public Cursor rawQueryStreaming(String sql, Object[] args, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("invalid streaming batch size " + batchSize);
+        }
+        net.sqlcipher.CursorWrapper cursorWrapper = (net.sqlcipher.CursorWrapper)rawQuery(sql, args);
+        ((SQLiteCursor)cursorWrapper.getWrappedCursor()).setStreaming(batchSize);
+        return cursorWrapper;
+    }
+
     /**
      * Convenience method for inserting a row into the database.
      *
@@ -2173,57 +3156,26 @@ public class SQLiteDatabase extends SQLiteClosable implements
             throw new IllegalStateException("database not open");
         }
 
-        // Measurements show most sql lengths <= 152
-        StringBuilder sql = new StringBuilder(152);
-        sql.append("INSERT");
-        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
-        sql.append(" INTO ");
-        sql.append(table);
-        // Measurements show most values lengths < 40
-        StringBuilder values = new StringBuilder(40);
-
-        Set<Map.Entry<String, Object>> entrySet = null;
-        if (initialValues != null && initialValues.size() > 0) {
-            entrySet = initialValues.valueSet();
-            Iterator<Map.Entry<String, Object>> entriesIter = entrySet.iterator();
-            sql.append('(');
-
-            boolean needSeparator = false;
-            while (entriesIter.hasNext()) {
-                if (needSeparator) {
-                    sql.append(", ");
-                    values.append(", ");
-                }
-                needSeparator = true;
-                Map.Entry<String, Object> entry = entriesIter.next();
-                sql.append(entry.getKey());
-                values.append('?');
+        int size = initialValues != null ? initialValues.size() : 0;
+        String[] columns = new String[size];
+        Object[] bindArgs = new Object[size];
+        if (size > 0) {
+            int i = 0;
+            for (Map.Entry<String, Object> entry : initialValues.valueSet()) {
+                columns[i] = entry.getKey();
+                bindArgs[i++] = entry.getValue();
             }
-
-            sql.append(')');
-        } else {
-            sql.append("(" + nullColumnHack + ") ");
-            values.append("NULL");
         }
-
-        sql.append(" VALUES(");
-        sql.append(values);
-        sql.append(");");
+        String sql = getInsertSql(table, nullColumnHack, columns, conflictAlgorithm);
 
         lock();
         SQLiteStatement statement = null;
         try {
-            statement = compileStatement(sql.toString());
+            statement = compileStatement(sql);
 
             // Bind the values
-            if (entrySet != null) {
-                int size = entrySet.size();
-                Iterator<Map.Entry<String, Object>> entriesIter = entrySet.iterator();
-                for (int i = 0; i < size; i++) {
-                    Map.Entry<String, Object> entry = entriesIter.next();
-                    DatabaseUtils.bindObjectToProgram(statement, i + 1, entry.getValue());
-
-                }
+            for (int i = 0; i < size; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
             }
 
             // Run the program and then cleanup
@@ -2352,49 +3304,34 @@ public class SQLiteDatabase extends SQLiteClosable implements
             throw new IllegalArgumentException("Empty values");
         }
 
-        StringBuilder sql = new StringBuilder(120);
-        sql.append("UPDATE ");
-        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
-        sql.append(table);
-        sql.append(" SET ");
-
-        Set<Map.Entry<String, Object>> entrySet = values.valueSet();
-        Iterator<Map.Entry<String, Object>> entriesIter = entrySet.iterator();
-
-        while (entriesIter.hasNext()) {
-            Map.Entry<String, Object> entry = entriesIter.next();
-            sql.append(entry.getKey());
-            sql.append("=?");
-            if (entriesIter.hasNext()) {
-                sql.append(", ");
-            }
+        int size = values.size();
+        String[] columns = new String[size];
+        Object[] bindArgs = new Object[size];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            columns[i] = entry.getKey();
+            bindArgs[i++] = entry.getValue();
         }
+        String sql = getUpdateSql(table, columns, whereClause, conflictAlgorithm);
 
-        if (!TextUtils.isEmpty(whereClause)) {
-            sql.append(" WHERE ");
-            sql.append(whereClause);
-        }
         SQLiteStatement statement = null;
         lock();
         try {
             if (!isOpen()) {
                 throw new IllegalStateException("database not open");
             }
-            statement = compileStatement(sql.toString());
+            statement = compileStatement(sql);
 
             // Bind the values
-            int size = entrySet.size();
-            entriesIter = entrySet.iterator();
             int bindArg = 1;
-            for (int i = 0; i < size; i++) {
-                Map.Entry<String, Object> entry = entriesIter.next();
-                DatabaseUtils.bindObjectToProgram(statement, bindArg, entry.getValue());
+            for (i = 0; i < size; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, bindArg, bindArgs[i]);
                 bindArg++;
             }
 
             if (whereArgs != null) {
                 size = whereArgs.length;
-                for (int i = 0; i < size; i++) {
+                for (i = 0; i < size; i++) {
                     statement.bindString(bindArg, whereArgs[i]);
                     bindArg++;
                 }
@@ -2424,6 +3361,159 @@ public class SQLiteDatabase extends SQLiteClosable implements
         }
     }
 
+    /**
+     * Key of {@link #mSqlTemplates}: everything that goes into the sql generated by
+     * {@link #insertWithOnConflict} or {@link #updateWithOnConflict}.
+     */
+    private static final class SqlTemplateKey {
+        final boolean mUpdate;
+        final String mTable;
+        final int mConflictAlgorithm;
+        final String[] mColumns;
+        /** the nullColumnHack of an insert without values, or the whereClause of an update */
+        final String mExtra;
+        private final int mHashCode;
+
+        SqlTemplateKey(boolean update, String table, int conflictAlgorithm,
+                       String[] columns, String extra) {
+            mUpdate = update;
+            mTable = table;
+            mConflictAlgorithm = conflictAlgorithm;
+            mColumns = columns;
+            mExtra = extra;
+            int hash = update ? 1 : 0;
+            hash = 31 * hash + (table != null ? table.hashCode() : 0);
+            hash = 31 * hash + conflictAlgorithm;
+            hash = 31 * hash + Arrays.hashCode(columns);
+            hash = 31 * hash + (extra != null ? extra.hashCode() : 0);
+            mHashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SqlTemplateKey)) {
+                return false;
+            }
+            SqlTemplateKey other = (SqlTemplateKey) o;
+            return mHashCode == other.mHashCode
+                    && mUpdate == other.mUpdate
+                    && mConflictAlgorithm == other.mConflictAlgorithm
+                    && TextUtils.equals(mTable, other.mTable)
+                    && TextUtils.equals(mExtra, other.mExtra)
+                    && Arrays.equals(mColumns, other.mColumns);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private String getCachedSqlTemplate(SqlTemplateKey key) {
+        if (mMaxSqlCacheSize == 0) {
+            return null;
+        }
+        synchronized (mSqlTemplates) {
+            return mSqlTemplates.get(key);
+        }
+    }
+
+    private void putCachedSqlTemplate(SqlTemplateKey key, String sql) {
+        if (mMaxSqlCacheSize == 0) {
+            return;
+        }
+        synchronized (mSqlTemplates) {
+            mSqlTemplates.put(key, sql);
+        }
+    }
+
+    /**
+     * returns the sql for {@link #insertWithOnConflict} inserting the given columns,
+     * generating it only if it isn't in {@link #mSqlTemplates} yet.
+     */
+    private String getInsertSql(String table, String nullColumnHack, String[] columns,
+                                int conflictAlgorithm) {
+        SqlTemplateKey key = new SqlTemplateKey(false, table, conflictAlgorithm, columns,
+                                                columns.length == 0 ? nullColumnHack : null);
+        String cached = getCachedSqlTemplate(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Measurements show most sql lengths <= 152
+        StringBuilder sql = new StringBuilder(152);
+        sql.append("INSERT");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+        sql.append(" INTO ");
+        sql.append(table);
+        // Measurements show most values lengths < 40
+        StringBuilder values = new StringBuilder(40);
+
+        if (columns.length > 0) {
+            sql.append('(');
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                    values.append(", ");
+                }
+                sql.append(columns[i]);
+                values.append('?');
+            }
+            sql.append(')');
+        } else {
+            sql.append("(" + nullColumnHack + ") ");
+            values.append("NULL");
+        }
+
+        sql.append(" VALUES(");
+        sql.append(values);
+        sql.append(");");
+
+        String result = sql.toString();
+        putCachedSqlTemplate(key, result);
+        return result;
+    }
+
+    /**
+     * returns the sql for {@link #updateWithOnConflict} setting the given columns,
+     * generating it only if it isn't in {@link #mSqlTemplates} yet.
+     */
+    private String getUpdateSql(String table, String[] columns, String whereClause,
+                                int conflictAlgorithm) {
+        SqlTemplateKey key = new SqlTemplateKey(true, table, conflictAlgorithm, columns,
+                                                TextUtils.isEmpty(whereClause) ? null : whereClause);
+        String cached = getCachedSqlTemplate(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("UPDATE ");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+        sql.append(table);
+        sql.append(" SET ");
+
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns[i]);
+            sql.append("=?");
+        }
+
+        if (!TextUtils.isEmpty(whereClause)) {
+            sql.append(" WHERE ");
+            sql.append(whereClause);
+        }
+
+        String result = sql.toString();
+        putCachedSqlTemplate(key, result);
+        return result;
+    }
+
     /**
      * Execute a single SQL statement that is not a query. For example, CREATE
      * TABLE, DELETE, INSERT, etc. Multiple statements separated by ;s are not
@@ -2433,13 +3523,15 @@ public class SQLiteDatabase extends SQLiteClosable implements
      * @throws IllegalStateException if the database is not open
      */
     public void execSQL(String sql) throws SQLException {
-        long timeStart = SystemClock.uptimeMillis();
         lock();
         try {
             if (!isOpen()) {
                 throw new IllegalStateException("database not open");
             }
+            long timeStart = markStatementStart(sql);
             native_execSQL(sql);
+            mMetrics.recordExecution(sql, timeStart, 0);
+            forwardConnectionSetup(sql, null);
         } catch (SQLiteDatabaseCorruptException e) {
             onCorruption();
             throw e;
@@ -2449,13 +3541,15 @@ public class SQLiteDatabase extends SQLiteClosable implements
     }
 
     public void rawExecSQL(String sql){
-        long timeStart = SystemClock.uptimeMillis();
         lock();
         try {
             if (!isOpen()) {
                 throw new IllegalStateException("database not open");
             }
+            long timeStart = markStatementStart(sql);
             native_rawExecSQL(sql);
+            mMetrics.recordExecution(sql, timeStart, 0);
+            forwardConnectionSetup(sql, null);
         } catch (SQLiteDatabaseCorruptException e) {
             onCorruption();
             throw e;
@@ -2494,6 +3588,7 @@ public class SQLiteDatabase extends SQLiteClosable implements
                 }
             }
             statement.execute();
+            forwardConnectionSetup(sql, bindArgs);
         } catch (SQLiteDatabaseCorruptException e) {
             onCorruption();
             throw e;
@@ -2505,6 +3600,166 @@ public class SQLiteDatabase extends SQLiteClosable implements
         }
     }
 
+    /**
+     * Runs the provided SQL query on one of the async executors, see
+     * {@link #setAsyncExecutors}, and fills the first window of the returned cursor
+     * there so that reading its first rows does not block. The cursor must be closed
+     * by the caller once the future has delivered it.
+     *
+     * <p>Cancelling the returned future while the query runs interrupts it, releasing
+     * its connection early; the cursor is then closed without being delivered.</p>
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param args You may include ?s in where clause in the query,
+     *     which will be replaced by the values from args. The
+     *     values will be bound by their type.
+     * @return a future delivering a {@link Cursor} positioned before the first entry
+     * @throws IllegalStateException if the database is closed
+     */
+    public SQLiteFuture<Cursor> queryAsync(final String sql, final Object[] args) {
+        SQLiteFuture<Cursor> future = new SQLiteFuture<Cursor>(new SQLiteFuture.Operation<Cursor>() {
+            public Cursor run(SQLiteFuture<Cursor> future) {
+                Cursor cursor = rawQuery(sql, args);
+                boolean delivered = false;
+                try {
+                    android.database.Cursor wrapped = ((net.sqlcipher.CursorWrapper)cursor).getWrappedCursor();
+                    SQLiteDatabase connection = wrapped instanceof SQLiteCursor
+                        ? ((SQLiteCursor)wrapped).getDatabase() : SQLiteDatabase.this;
+                    // only let cancel() interrupt the connection while this operation
+                    // holds its lock, so that it can't abort another thread's statement
+                    connection.lock();
+                    try {
+                        future.setConnection(connection);
+                        try {
+                            // force the query to run on this thread
+                            cursor.getCount();
+                        } finally {
+                            future.setConnection(null);
+                        }
+                    } finally {
+                        connection.unlock();
+                    }
+                    delivered = !future.isCancelled();
+                    return cursor;
+                } finally {
+                    if (!delivered) {
+                        cursor.close();
+                    }
+                }
+            }
+        });
+        submitAsync(future, false);
+        return future;
+    }
+
+    /**
+     * Executes a single SQL statement that is not a query on the async write executor,
+     * see {@link #setAsyncExecutors}. Statements submitted this way run one at a time
+     * in submission order.
+     *
+     * @param sql the SQL statement
+     * @param bindArgs only byte[], String, Long and Double are supported in bindArgs,
+     *     may be null
+     * @return a future that completes when the statement has run, or delivers its
+     * {@link SQLException} through {@link Future#get()}
+     * @throws IllegalStateException if the database is closed
+     */
+    public SQLiteFuture<Void> execSQLAsync(final String sql, final Object[] bindArgs) {
+        SQLiteFuture<Void> future = new SQLiteFuture<Void>(new SQLiteFuture.Operation<Void>() {
+            public Void run(SQLiteFuture<Void> future) {
+                lock();
+                try {
+                    future.setConnection(SQLiteDatabase.this);
+                    try {
+                        if (bindArgs == null) {
+                            execSQL(sql);
+                        } else {
+                            execSQL(sql, bindArgs);
+                        }
+                    } finally {
+                        future.setConnection(null);
+                    }
+                } finally {
+                    unlock();
+                }
+                return null;
+            }
+        });
+        submitAsync(future, true);
+        return future;
+    }
+
+    /**
+     * Inserts a row into the database on the async write executor, see
+     * {@link #setAsyncExecutors}. The values are copied when this method is called.
+     * Unlike {@link #insert}, a failed insert delivers its {@link SQLException} through
+     * {@link Future#get()} instead of returning -1.
+     *
+     * @param table the table to insert the row into
+     * @param nullColumnHack SQL doesn't allow inserting a completely empty row,
+     *            so if initialValues is empty this column will explicitly be
+     *            assigned a NULL value
+     * @param values this map contains the initial column values for the
+     *            row. The keys should be the column names and the values the
+     *            column values
+     * @return a future delivering the row ID of the newly inserted row
+     * @throws IllegalStateException if the database is closed
+     */
+    public SQLiteFuture<Long> insertAsync(final String table, final String nullColumnHack,
+                                          ContentValues values) {
+        final ContentValues copy = values == null ? null : new ContentValues(values);
+        SQLiteFuture<Long> future = new SQLiteFuture<Long>(new SQLiteFuture.Operation<Long>() {
+            public Long run(SQLiteFuture<Long> future) {
+                lock();
+                try {
+                    future.setConnection(SQLiteDatabase.this);
+                    try {
+                        return insertWithOnConflict(table, nullColumnHack, copy, CONFLICT_NONE);
+                    } finally {
+                        future.setConnection(null);
+                    }
+                } finally {
+                    unlock();
+                }
+            }
+        });
+        submitAsync(future, true);
+        return future;
+    }
+
+    /**
+     * Runs body in a transaction on the async write executor, see
+     * {@link #setAsyncExecutors}. The transaction is committed if body returns and
+     * rolled back if it throws, in which case the exception is delivered through
+     * {@link Future#get()}.
+     *
+     * @param body the work to do in the transaction, on this database
+     * @return a future delivering the result of body
+     * @throws IllegalStateException if the database is closed
+     */
+    public <T> SQLiteFuture<T> runInTransactionAsync(final Callable<T> body) {
+        SQLiteFuture<T> future = new SQLiteFuture<T>(new SQLiteFuture.Operation<T>() {
+            public T run(SQLiteFuture<T> future) throws Exception {
+                beginTransaction();
+                try {
+                    // the transaction holds the lock until endTransaction()
+                    future.setConnection(SQLiteDatabase.this);
+                    try {
+                        T result = body.call();
+                        setTransactionSuccessful();
+                        return result;
+                    } finally {
+                        future.setConnection(null);
+                    }
+                } finally {
+                    endTransaction();
+                }
+            }
+        });
+        submitAsync(future, true);
+        return future;
+    }
+
     @Override
     protected void finalize() {
         if (isOpen()) {
@@ -2581,6 +3836,7 @@ public class SQLiteDatabase extends SQLiteClosable implements
 
         mFlags = flags;
         mPath = path;
+        mLock = new ReentrantLock((flags & NON_FAIR_LOCKING) == 0);
 
         mSlowQueryThreshold = -1;//SystemProperties.getInt(LOG_SLOW_QUERIES_PROPERTY, -1);
         mStackTrace = new DatabaseObjectNotClosedException().fillInStackTrace();
@@ -2595,6 +3851,42 @@ public class SQLiteDatabase extends SQLiteClosable implements
         openDatabaseInternal(keyMaterial, hook);
     }
 
+    private void openDatabaseInternal(byte[] password, SQLiteRawKey rawKey, SQLiteDatabaseHook hook) {
+        if (rawKey != null) {
+            openDatabaseInternal(rawKey, hook);
+        } else {
+            openDatabaseInternal(password, hook);
+        }
+    }
+
+    private void openDatabaseInternal(final SQLiteRawKey rawKey, SQLiteDatabaseHook hook) {
+        if (!rawKey.isValid()) {
+            throw new IllegalStateException("raw key has been closed");
+        }
+        boolean shouldCloseConnection = true;
+        dbopen(mPath, mFlags);
+        try {
+            keyDatabase(hook, new Runnable() {
+                    public void run() {
+                        synchronized (rawKey) {
+                            if (!rawKey.isValid()) {
+                                throw new IllegalStateException("raw key has been closed");
+                            }
+                            key_raw(rawKey.getBuffer(), rawKey.getLength());
+                        }
+                    }
+                });
+            shouldCloseConnection = false;
+        } finally {
+            if(shouldCloseConnection) {
+                dbclose();
+                if (SQLiteDebug.DEBUG_SQL_CACHE) {
+                    mTimeClosed = getTime();
+                }
+            }
+        }
+    }
+
     private void openDatabaseInternal(final byte[] password, SQLiteDatabaseHook hook) {
         boolean shouldCloseConnection = true;
         dbopen(mPath, mFlags);
@@ -2669,11 +3961,13 @@ public class SQLiteDatabase extends SQLiteClosable implements
             mTimeOpened = getTime();
         }
         try {
-            Cursor cursor = rawQuery("select count(*) from sqlite_master;", new String[]{});
-            if(cursor != null){
-                cursor.moveToFirst();
-                int count = cursor.getInt(0);
-                cursor.close();
+            // reading the schema version decrypts the first page, which fails with
+            // a wrong key, without the cursor, window and schema scan of a query
+            SQLiteStatement statement = compileStatement("PRAGMA schema_version;");
+            try {
+                statement.simpleQueryForLong();
+            } finally {
+                statement.close();
             }
         } catch (RuntimeException e) {
           if(BuildConfig.DEBUG){
@@ -2763,9 +4057,12 @@ public class SQLiteDatabase extends SQLiteClosable implements
      * adds the given sql and its compiled-statement-id-returned-by-sqlite to the
      * cache of compiledQueries attached to 'this'.
      *
-     * if there is already a {@link SQLiteCompiledSql} in compiledQueries for the given sql,
-     * the new {@link SQLiteCompiledSql} object is NOT inserted into the cache (i.e.,the current
-     * mapping is NOT replaced with the new mapping).
+     * the new {@link SQLiteCompiledSql} object is added to the pool of compiled statements
+     * for the given sql, unless that pool already holds MAX_SQL_POOL_SIZE objects, in which
+     * case it is NOT inserted into the cache.
+     *
+     * if the cache is full, the least recently used sql statement is evicted to make room
+     * for the new one.
      */
     /* package */ void addToCompiledQueries(String sql, SQLiteCompiledSql compiledStatement) {
         if (mMaxSqlCacheSize == 0) {
@@ -2776,58 +4073,85 @@ public class SQLiteDatabase extends SQLiteClosable implements
             return;
         }
 
-        SQLiteCompiledSql compiledSql = null;
         synchronized(mCompiledQueries) {
-            // don't insert the new mapping if a mapping already exists
-            compiledSql = mCompiledQueries.get(sql);
-            if (compiledSql != null) {
-                return;
-            }
-            // add this <sql, compiledStatement> to the cache
-            if (mCompiledQueries.size() == mMaxSqlCacheSize) {
-                /*
-                 * cache size of {@link #mMaxSqlCacheSize} is not enough for this app.
-                 * log a warning MAX_WARNINGS_ON_CACHESIZE_CONDITION times
-                 * chances are it is NOT using ? for bindargs - so caching is useless.
-                 * TODO: either let the callers set max cchesize for their app, or intelligently
-                 * figure out what should be cached for a given app.
-                 */
-                if (++mCacheFullWarnings == MAX_WARNINGS_ON_CACHESIZE_CONDITION && BuildConfig.DEBUG) {
-                    Log.w(TAG, "Reached MAX size for compiled-sql statement cache for database " +
-                          getPath() + "; i.e., NO space for this sql statement in cache: " +
-                          sql + ". Please change your sql statements to use '?' for " +
-                          "bindargs, instead of using actual values");
-                }
+            List<SQLiteCompiledSql> pool = mCompiledQueries.get(sql);
+            if (pool == null) {
+                // add this <sql, compiledStatement> to the cache. if the cache is full,
+                // the least recently used mapping is evicted by removeEldestEntry().
+                pool = new ArrayList<SQLiteCompiledSql>(MAX_SQL_POOL_SIZE);
+                mCompiledQueries.put(sql, pool);
+            } else if (pool.size() >= MAX_SQL_POOL_SIZE) {
                 // don't add this entry to cache
-            } else {
-                // cache is NOT full. add this to cache.
-                mCompiledQueries.put(sql, compiledStatement);
                 if (SQLiteDebug.DEBUG_SQL_CACHE && BuildConfig.DEBUG) {
-                    Log.v(TAG, "|adding_sql_to_cache|" + getPath() + "|" +
-                          mCompiledQueries.size() + "|" + sql);
+                    Log.v(TAG, "|NOT adding_sql_to_cache (pool full)|" + getPath() + "|" + sql);
                 }
+                return;
+            }
+            pool.add(compiledStatement);
+            compiledStatement.mInCache = true;
+            if (SQLiteDebug.DEBUG_SQL_CACHE && BuildConfig.DEBUG) {
+                Log.v(TAG, "|adding_sql_to_cache|" + getPath() + "|" +
+                      mCompiledQueries.size() + "|" + pool.size() + "|" + sql);
             }
         }
-        return;
     }
 
+    /**
+     * called with the mCompiledQueries lock held when the least recently used mapping
+     * is evicted from the compiled-sql cache.
+     */
+    private void evictFromCompiledQueries(String sql, List<SQLiteCompiledSql> pool) {
+        mNumCacheEvictions++;
+        if (++mCacheFullWarnings == MAX_WARNINGS_ON_CACHESIZE_CONDITION && BuildConfig.DEBUG) {
+            /*
+             * cache size of {@link #mMaxSqlCacheSize} is not enough for this app.
+             * log a warning MAX_WARNINGS_ON_CACHESIZE_CONDITION times
+             * chances are it is NOT using ? for bindargs - so caching is less useful.
+             */
+            Log.w(TAG, "Reached MAX size for compiled-sql statement cache for database " +
+                  getPath() + "; evicting least recently used sql statements from cache. " +
+                  "Please change your sql statements to use '?' for " +
+                  "bindargs, instead of using actual values");
+        }
+        if (SQLiteDebug.DEBUG_SQL_CACHE && BuildConfig.DEBUG) {
+            Log.v(TAG, "|evicting_sql_from_cache|" + getPath() + "|" +
+                  mNumCacheEvictions + "|" + sql);
+        }
+        releaseCompiledSqlPool(pool);
+    }
+
+    /**
+     * called with the mCompiledQueries lock held when a pool is removed from the cache.
+     * a {@link SQLiteProgram} still using one of its statements releases that statement
+     * when it is done, because it is no longer marked as cached.
+     */
+    private void releaseCompiledSqlPool(List<SQLiteCompiledSql> pool) {
+        for (SQLiteCompiledSql compiledSql : pool) {
+            compiledSql.mInCache = false;
+            compiledSql.releaseSqlStatementIfNotInUse();
+        }
+    }
 
     private void deallocCachedSqlStatements() {
         synchronized (mCompiledQueries) {
-            for (SQLiteCompiledSql compiledSql : mCompiledQueries.values()) {
-                compiledSql.releaseSqlStatement();
+            for (List<SQLiteCompiledSql> pool : mCompiledQueries.values()) {
+                for (SQLiteCompiledSql compiledSql : pool) {
+                    compiledSql.mInCache = false;
+                    compiledSql.releaseSqlStatement();
+                }
             }
             mCompiledQueries.clear();
         }
     }
 
     /**
-     * from the compiledQueries cache, returns the compiled-statement-id for the given sql.
-     * returns null, if not found in the cache.
+     * from the compiledQueries cache, returns a compiled-statement-id for the given sql
+     * that is not in use by any other {@link SQLiteProgram}. the returned object is already
+     * acquired by the caller, who must release it when done.
+     * returns null, if not found in the cache or if all of the cached ones are in use.
      */
     /* package */ SQLiteCompiledSql getCompiledStatementForSql(String sql) {
         SQLiteCompiledSql compiledStatement = null;
-        boolean cacheHit;
         synchronized(mCompiledQueries) {
             if (mMaxSqlCacheSize == 0) {
                 // for this database, there is no cache of compiled sql.
@@ -2836,8 +4160,17 @@ public class SQLiteDatabase extends SQLiteClosable implements
                 }
                 return null;
             }
-            cacheHit = (compiledStatement = mCompiledQueries.get(sql)) != null;
+            List<SQLiteCompiledSql> pool = mCompiledQueries.get(sql);
+            if (pool != null) {
+                for (SQLiteCompiledSql compiledSql : pool) {
+                    if (compiledSql.acquire()) {
+                        compiledStatement = compiledSql;
+                        break;
+                    }
+                }
+            }
         }
+        boolean cacheHit = compiledStatement != null;
         if (cacheHit) {
             mNumCacheHits++;
         } else {
@@ -2848,11 +4181,29 @@ public class SQLiteDatabase extends SQLiteClosable implements
             Log.v(TAG, "|cache_stats|" +
                   getPath() + "|" + mCompiledQueries.size() +
                   "|" + mNumCacheHits + "|" + mNumCacheMisses +
-                  "|" + cacheHit + "|" + mTimeOpened + "|" + mTimeClosed + "|" + sql);
+                  "|" + mNumCacheEvictions + "|" + cacheHit +
+                  "|" + mTimeOpened + "|" + mTimeClosed + "|" + sql);
         }
         return compiledStatement;
     }
 
+    /**
+     * returns the given compiled statement to the cache if it is cached, or releases it
+     * otherwise.
+     */
+    /* package */ void releaseCompiledSql(SQLiteCompiledSql compiledSql) {
+        synchronized(mCompiledQueries) {
+            if (compiledSql.mInCache) {
+                // it is in compiled-sql cache. reset its CompiledSql#mInUse flag
+                compiledSql.release();
+            } else {
+                // it is NOT in compiled-sql cache. i.e., responsibility of
+                // releasing this statement is on the caller.
+                compiledSql.releaseSqlStatement();
+            }
+        }
+    }
+
     /**
      * returns true if the given sql is cached in compiled-sql cache.
      * @hide
@@ -2869,7 +4220,10 @@ public class SQLiteDatabase extends SQLiteClosable implements
      */
     public void purgeFromCompiledSqlCache(String sql) {
         synchronized(mCompiledQueries) {
-            mCompiledQueries.remove(sql);
+            List<SQLiteCompiledSql> pool = mCompiledQueries.remove(sql);
+            if (pool != null) {
+                releaseCompiledSqlPool(pool);
+            }
         }
     }
 
@@ -2955,9 +4309,13 @@ public class SQLiteDatabase extends SQLiteClosable implements
         String sql = supportQuery.getSql();
         int argumentCount = supportQuery.getArgCount();
         Object[] args = new Object[argumentCount];
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
         SQLiteDirectCursorDriver driver = new SQLiteDirectCursorDriver(this, sql, null);
         SQLiteQuery query = new SQLiteQuery(this, sql, 0, args);
         supportQuery.bindTo(query);
+        query.setCancellationSignal(cancellationSignal);
         return new CrossProcessCursorWrapper(new SQLiteCursor(this, driver, null, query));
     }
 
@@ -3223,6 +4581,13 @@ public class SQLiteDatabase extends SQLiteClosable implements
      */
     private native void enableSqlProfiling(String path);
 
+    /**
+     * Native call to set the trace listener, see {@link #setTraceListener}. {@link #lock}
+     * must be held when calling this method.
+     */
+    private native void native_setTraceListener(SQLiteTraceListener listener, int events,
+                                                double sampleRate);
+
     /**
      * Native call to execute a raw SQL statement. {@link #lock} must be held
      * when calling this method.
@@ -3266,7 +4631,20 @@ public class SQLiteDatabase extends SQLiteClosable implements
 
     private native int native_status(int operation, boolean reset);
 
+    /**
+     * Native call to clear the cancel flag of this connection and to check it from a
+     * progress handler while the statements are stepped if cancelable, or stop checking
+     * it otherwise.
+     */
+    private native void native_resetCancel(boolean cancelable);
+
+    /**
+     * Native call to set the cancel flag of this connection, see {@link #cancel()}.
+     */
+    private native void native_cancel();
+
     private native void key(byte[] key) throws SQLException;
+    private native void key_raw(ByteBuffer key, int length) throws SQLException;
     private native void key_mutf8(char[] key) throws SQLException;
     private native void rekey(byte[] key) throws SQLException;
 }
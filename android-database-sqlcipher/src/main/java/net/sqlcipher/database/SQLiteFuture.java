@@ -0,0 +1,79 @@
+package net.sqlcipher.database;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The result of an operation submitted through one of the asynchronous methods of
+ * {@link SQLiteDatabase}, such as {@link SQLiteDatabase#queryAsync}.
+ *
+ * <p>Cancelling the future with {@code mayInterruptIfRunning} set while its operation
+ * is running aborts the statement being stepped on the operation's connection, see
+ * {@link SQLiteDatabase#cancel()}, so that the connection and its lock are released
+ * early instead of when the statement completes. Statements other cursors keep active
+ * on the connection are not affected. A cancelled future never delivers its result.</p>
+ */
+public class SQLiteFuture<V> extends FutureTask<V> {
+
+  /**
+   * An operation run by a SQLiteFuture, which tells the future the connection it runs
+   * its statements on.
+   */
+  /* package */ interface Operation<V> {
+    V run(SQLiteFuture<V> future) throws Exception;
+  }
+
+  private static class OperationCallable<V> implements Callable<V> {
+    private final Operation<V> mOperation;
+    private SQLiteFuture<V> mFuture;
+
+    OperationCallable(Operation<V> operation) {
+      mOperation = operation;
+    }
+
+    public V call() throws Exception {
+      return mOperation.run(mFuture);
+    }
+  }
+
+  /** The connection the operation is running on, null when it is not running */
+  private SQLiteDatabase mConnection;
+
+  /* package */ SQLiteFuture(Operation<V> operation) {
+    this(new OperationCallable<V>(operation));
+  }
+
+  private SQLiteFuture(OperationCallable<V> callable) {
+    super(callable);
+    callable.mFuture = this;
+  }
+
+  /**
+   * Called by the operation with the connection it runs its statements on once it
+   * holds the lock of that connection, and with null before releasing the lock, so that
+   * {@link #cancel(boolean)} only cancels statements of this operation. Once this
+   * returns with null, a cancel() in progress has finished and its cancellation has
+   * been cleared.
+   */
+  /* package */ synchronized void setConnection(SQLiteDatabase connection) {
+    if (connection != null) {
+      connection.attachCancellation();
+    } else if (mConnection != null) {
+      mConnection.detachCancellation();
+    }
+    mConnection = connection;
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    boolean cancelled = super.cancel(mayInterruptIfRunning);
+    if (cancelled && mayInterruptIfRunning) {
+      synchronized (this) {
+        if (mConnection != null && mConnection.isOpen()) {
+          mConnection.cancel();
+        }
+      }
+    }
+    return cancelled;
+  }
+}
@@ -0,0 +1,143 @@
+package net.sqlcipher.database;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets: every power of two
+ * is split into 8 buckets, so any recorded value is reported within 12.5% of its
+ * actual value while a histogram spanning nanoseconds to minutes takes about 1KB.
+ * Durations above 2^40ns (about 18 minutes) are recorded as 2^40ns.
+ *
+ * <p>Instances are not synchronized; the histograms handed out by
+ * {@link SQLiteMetrics} are copies that are not updated any further.</p>
+ */
+public class SQLiteLatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = 1L << MAX_EXPONENT;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private final int[] mCounts;
+  private long mCount;
+  private long mTotal;
+  private long mMax;
+
+  public SQLiteLatencyHistogram() {
+    mCounts = new int[BUCKETS];
+  }
+
+  /* package */ SQLiteLatencyHistogram(SQLiteLatencyHistogram other) {
+    mCounts = other.mCounts.clone();
+    mCount = other.mCount;
+    mTotal = other.mTotal;
+    mMax = other.mMax;
+  }
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos the duration in nanoseconds, negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0L), MAX_VALUE);
+    mCounts[bucketOf(value)]++;
+    mCount++;
+    mTotal += value;
+    if (value > mMax) {
+      mMax = value;
+    }
+  }
+
+  /**
+   * Adds all the durations recorded in another histogram to this one.
+   */
+  public void add(SQLiteLatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      mCounts[i] += other.mCounts[i];
+    }
+    mCount += other.mCount;
+    mTotal += other.mTotal;
+    mMax = Math.max(mMax, other.mMax);
+  }
+
+  public void reset() {
+    Arrays.fill(mCounts, 0);
+    mCount = 0;
+    mTotal = 0;
+    mMax = 0;
+  }
+
+  /**
+   * @return the number of recorded durations
+   */
+  public long getCount() {
+    return mCount;
+  }
+
+  /**
+   * @return the sum of the recorded durations, in nanoseconds
+   */
+  public long getTotalNanos() {
+    return mTotal;
+  }
+
+  /**
+   * @return the longest recorded duration, in nanoseconds
+   */
+  public long getMaxNanos() {
+    return mMax;
+  }
+
+  /**
+   * @return the mean of the recorded durations in nanoseconds, 0 if there are none
+   */
+  public long getMeanNanos() {
+    return mCount == 0 ? 0 : mTotal / mCount;
+  }
+
+  /**
+   * Returns the duration that the given percentage of the recorded durations are
+   * shorter than or equal to, e.g. 50 for the median or 99 for the 99th percentile.
+   *
+   * @param percentile a percentage between 0 and 100
+   * @return the duration in nanoseconds, 0 if nothing was recorded
+   */
+  public long getNanosAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100, was " + percentile);
+    }
+    if (mCount == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long)Math.ceil(mCount * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += mCounts[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), mMax);
+      }
+    }
+    return mMax;
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** The highest value that falls into the given bucket */
+  private static long highestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,339 @@
+package net.sqlcipher.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.util.Log;
+
+import net.sqlcipher.BuildConfig;
+
+/**
+ * Contention metrics of the lock of a {@link SQLiteDatabase} and of the locks of its
+ * read connection pool, see {@link SQLiteDatabase#getLockMetrics()}: how long threads
+ * waited for the lock, how long they held it, how many other threads were queued when
+ * it was contended, and the longest holds together with the SQL they ran.
+ *
+ * <p>Only the outermost acquisition of a thread is recorded, so a transaction counts
+ * as one hold. Recording is always on and costs two clock reads per hold, plus taking
+ * the monitor of the stripe the connection records into. The primary connection and
+ * its first seven read connections each get a stripe of their own, and only the thread
+ * holding a connection's lock records into its stripe, so these monitors are normally
+ * uncontended; the getters merge the stripes.</p>
+ *
+ * <p>The SQL of a hold is normalized like in {@link SQLiteMetrics}, with its literals
+ * replaced by {@code ?}, and the SQL of statements that set a key is not kept.</p>
+ */
+public class SQLiteLockMetrics {
+  private static final String TAG = "SQLiteLockMetrics";
+
+  /** The number of longest holds kept, see {@link #getLongestHolds()} */
+  public static final int MAX_LONGEST_HOLDS = 10;
+
+  /** The most stripes the connections record into, they share them beyond that */
+  private static final int STRIPES = 8;
+
+  private static final Comparator<LockHold> LONGEST_FIRST = new Comparator<LockHold>() {
+    @Override
+    public int compare(LockHold a, LockHold b) {
+      return a.mHoldNanos > b.mHoldNanos ? -1 : (a.mHoldNanos == b.mHoldNanos ? 0 : 1);
+    }
+  };
+
+  /**
+   * Notified of holds longer than a threshold, see {@link #setLongHoldListener}.
+   */
+  public interface LongHoldListener {
+    /**
+     * Called on the thread that held the lock, right after releasing it. Exceptions
+     * thrown by the listener are logged and dropped.
+     *
+     * @param hold the hold that exceeded the threshold
+     */
+    void onLongHold(LockHold hold);
+  }
+
+  /** One hold of the lock */
+  public static class LockHold {
+    private final String mThreadName;
+    private final String mSql;
+    private final long mHoldNanos;
+    private final long mReleasedAtMillis;
+
+    LockHold(String threadName, String sql, long holdNanos, long releasedAtMillis) {
+      mThreadName = threadName;
+      mSql = sql;
+      mHoldNanos = holdNanos;
+      mReleasedAtMillis = releasedAtMillis;
+    }
+
+    /**
+     * @return the name of the thread that held the lock
+     */
+    public String getThreadName() {
+      return mThreadName;
+    }
+
+    /**
+     * @return the normalized SQL of the last statement run while the lock was held, or
+     * null if none was run or it set a key
+     */
+    public String getSql() {
+      return mSql;
+    }
+
+    /**
+     * @return how long the lock was held, in nanoseconds
+     */
+    public long getHoldNanos() {
+      return mHoldNanos;
+    }
+
+    /**
+     * @return when the lock was released, in milliseconds since the epoch
+     */
+    public long getReleasedAtMillis() {
+      return mReleasedAtMillis;
+    }
+
+    @Override
+    public String toString() {
+      return mThreadName + " held the lock for " + mHoldNanos / 1000000 + "ms, last sql: " + mSql;
+    }
+  }
+
+  /**
+   * The metrics recorded by the connections assigned to it, guarded by its monitor.
+   */
+  /* package */ final class Stripe {
+    private final SQLiteLatencyHistogram mWaitTimes = new SQLiteLatencyHistogram();
+    private final SQLiteLatencyHistogram mHoldTimes = new SQLiteLatencyHistogram();
+    private long mContendedCount;
+    private long mQueueLengthTotal;
+    private int mMaxQueueLength;
+
+    /** The longest holds, longest first */
+    private final List<LockHold> mLongestHolds = new ArrayList<LockHold>(MAX_LONGEST_HOLDS + 1);
+
+    private Stripe() {
+    }
+
+    /* package */ synchronized void recordAcquire(long waitNanos, boolean contended, int queueLength) {
+      mWaitTimes.record(waitNanos);
+      if (contended) {
+        mContendedCount++;
+        mQueueLengthTotal += queueLength;
+        if (queueLength > mMaxQueueLength) {
+          mMaxQueueLength = queueLength;
+        }
+      }
+    }
+
+    /**
+     * Records a hold. Returns the hold if the long hold listener should be notified of it,
+     * which the caller does once it has released the lock.
+     */
+    /* package */ LockHold recordRelease(long holdNanos, String sql) {
+      LockHold hold = null;
+      synchronized (this) {
+        mHoldTimes.record(holdNanos);
+        int size = mLongestHolds.size();
+        if (size < MAX_LONGEST_HOLDS || holdNanos > mLongestHolds.get(size - 1).mHoldNanos) {
+          hold = newHold(holdNanos, sql);
+          int index = size;
+          while (index > 0 && mLongestHolds.get(index - 1).mHoldNanos < holdNanos) {
+            index--;
+          }
+          mLongestHolds.add(index, hold);
+          if (mLongestHolds.size() > MAX_LONGEST_HOLDS) {
+            mLongestHolds.remove(MAX_LONGEST_HOLDS);
+          }
+        }
+      }
+      if (mLongHoldListener == null || holdNanos < mLongHoldThresholdNanos) {
+        return null;
+      }
+      return hold != null ? hold : newHold(holdNanos, sql);
+    }
+
+    private synchronized void reset() {
+      mWaitTimes.reset();
+      mHoldTimes.reset();
+      mContendedCount = 0;
+      mQueueLengthTotal = 0;
+      mMaxQueueLength = 0;
+      mLongestHolds.clear();
+    }
+  }
+
+  /** The stripes, created as connections are assigned to them */
+  private final Stripe[] mStripes = new Stripe[STRIPES];
+  private int mStripesAssigned;
+
+  private volatile LongHoldListener mLongHoldListener;
+  private volatile long mLongHoldThresholdNanos;
+
+  /* package */ SQLiteLockMetrics() {
+  }
+
+  /**
+   * Assigns a connection the stripe it records into, a stripe of its own for the first
+   * {@code STRIPES} connections.
+   */
+  /* package */ synchronized Stripe assignStripe() {
+    int index = mStripesAssigned++ % STRIPES;
+    if (mStripes[index] == null) {
+      mStripes[index] = new Stripe();
+    }
+    return mStripes[index];
+  }
+
+  /**
+   * Sets a listener that is notified of every hold longer than the given threshold.
+   *
+   * @param listener the listener, or null to remove it
+   * @param thresholdMillis the shortest hold reported, in milliseconds
+   */
+  public void setLongHoldListener(LongHoldListener listener, long thresholdMillis) {
+    mLongHoldThresholdNanos = thresholdMillis * 1000000L;
+    mLongHoldListener = listener;
+  }
+
+  /**
+   * @return a copy of the distribution of the time threads waited for the lock
+   */
+  public SQLiteLatencyHistogram getWaitTimes() {
+    SQLiteLatencyHistogram waitTimes = new SQLiteLatencyHistogram();
+    for (Stripe stripe : getStripes()) {
+      synchronized (stripe) {
+        waitTimes.add(stripe.mWaitTimes);
+      }
+    }
+    return waitTimes;
+  }
+
+  /**
+   * @return a copy of the distribution of the time threads held the lock
+   */
+  public SQLiteLatencyHistogram getHoldTimes() {
+    SQLiteLatencyHistogram holdTimes = new SQLiteLatencyHistogram();
+    for (Stripe stripe : getStripes()) {
+      synchronized (stripe) {
+        holdTimes.add(stripe.mHoldTimes);
+      }
+    }
+    return holdTimes;
+  }
+
+  /**
+   * @return the number of acquisitions
+   */
+  public long getAcquisitionCount() {
+    long count = 0;
+    for (Stripe stripe : getStripes()) {
+      synchronized (stripe) {
+        count += stripe.mWaitTimes.getCount();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of acquisitions that found the lock held by another thread
+   */
+  public long getContendedCount() {
+    long count = 0;
+    for (Stripe stripe : getStripes()) {
+      synchronized (stripe) {
+        count += stripe.mContendedCount;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the mean number of threads that were already waiting when an acquisition
+   * found the lock held by another thread
+   */
+  public double getMeanQueueLength() {
+    long contendedCount = 0;
+    long queueLengthTotal = 0;
+    for (Stripe stripe : getStripes()) {
+      synchronized (stripe) {
+        contendedCount += stripe.mContendedCount;
+        queueLengthTotal += stripe.mQueueLengthTotal;
+      }
+    }
+    return contendedCount == 0 ? 0 : (double)queueLengthTotal / contendedCount;
+  }
+
+  /**
+   * @return the most threads seen waiting for the lock at once
+   */
+  public int getMaxQueueLength() {
+    int maxQueueLength = 0;
+    for (Stripe stripe : getStripes()) {
+      synchronized (stripe) {
+        maxQueueLength = Math.max(maxQueueLength, stripe.mMaxQueueLength);
+      }
+    }
+    return maxQueueLength;
+  }
+
+  /**
+   * @return the {@link #MAX_LONGEST_HOLDS} longest holds so far, longest first
+   */
+  public List<LockHold> getLongestHolds() {
+    List<LockHold> holds = new ArrayList<LockHold>();
+    for (Stripe stripe : getStripes()) {
+      synchronized (stripe) {
+        holds.addAll(stripe.mLongestHolds);
+      }
+    }
+    Collections.sort(holds, LONGEST_FIRST);
+    return holds.size() > MAX_LONGEST_HOLDS
+        ? new ArrayList<LockHold>(holds.subList(0, MAX_LONGEST_HOLDS)) : holds;
+  }
+
+  /**
+   * Discards all the metrics recorded so far.
+   */
+  public void reset() {
+    for (Stripe stripe : getStripes()) {
+      stripe.reset();
+    }
+  }
+
+  private synchronized List<Stripe> getStripes() {
+    List<Stripe> stripes = new ArrayList<Stripe>(STRIPES);
+    for (Stripe stripe : mStripes) {
+      if (stripe != null) {
+        stripes.add(stripe);
+      }
+    }
+    return stripes;
+  }
+
+  /* package */ void notifyLongHold(LockHold hold) {
+    LongHoldListener listener = mLongHoldListener;
+    if (listener != null) {
+      try {
+        listener.onLongHold(hold);
+      } catch (RuntimeException e) {
+        if(BuildConfig.DEBUG){
+          Log.e(TAG, "long hold listener failed", e);
+        }
+      }
+    }
+  }
+
+  private static LockHold newHold(long holdNanos, String sql) {
+    // only the holds that are kept or reported pay for normalizing their SQL
+    if (sql != null) {
+      sql = SQLiteMetrics.isKeyStatement(sql) ? null : SQLiteMetrics.normalizeSql(sql);
+    }
+    return new LockHold(Thread.currentThread().getName(), sql, holdNanos,
+                        System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,416 @@
+package net.sqlcipher.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-statement execution metrics of a {@link SQLiteDatabase} and its read connection
+ * pool, see {@link SQLiteDatabase#getMetrics()}. Statements are grouped by their
+ * normalized SQL: whitespace is collapsed and string and numeric literals are
+ * replaced by {@code ?}, so statements that only differ in their literal values
+ * share one entry.
+ *
+ * <p>Recording is on by default and costs a clock read, a concurrent hash lookup and
+ * taking the monitor of the statement's own entry per execution, so connections running
+ * different statements do not contend. At most {@link #MAX_STATEMENTS} statements are
+ * tracked; the executions of statements beyond that are added to an entry whose SQL is
+ * {@link #OTHER_SQL}.</p>
+ *
+ * <p>Statements that set a key, {@code PRAGMA key}, {@code PRAGMA rekey} and their
+ * variants and {@code ATTACH ... KEY}, are not recorded, and only SQL without literals
+ * is remembered as it was executed, so no key material is kept.</p>
+ */
+public class SQLiteMetrics {
+
+  /** The most statements tracked separately */
+  public static final int MAX_STATEMENTS = 256;
+
+  /** The SQL of the entry that collects the statements beyond {@link #MAX_STATEMENTS} */
+  public static final String OTHER_SQL = "<other>";
+
+  /** The most raw SQL strings remembered to skip normalizing them again */
+  private static final int MAX_RAW_SQL = 512;
+
+  /** Orders snapshots by when their statement was first recorded */
+  private static final Comparator<StatementMetrics> FIRST_RECORDED_ORDER =
+      new Comparator<StatementMetrics>() {
+        @Override
+        public int compare(StatementMetrics a, StatementMetrics b) {
+          return a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+        }
+      };
+
+  /**
+   * The metrics of one normalized statement. The instances returned by
+   * {@link SQLiteMetrics} are snapshots that are not updated any further; the live
+   * instances are updated while synchronized on themselves.
+   */
+  public static class StatementMetrics {
+    private final String mSql;
+    private final long mSequence;
+    private final SQLiteLatencyHistogram mLatency;
+    private long mRowCount;
+    private long mWindowFillCount;
+    private long mCacheHitCount;
+    private long mCacheMissCount;
+
+    StatementMetrics(String sql, long sequence) {
+      mSql = sql;
+      mSequence = sequence;
+      mLatency = new SQLiteLatencyHistogram();
+    }
+
+    StatementMetrics(StatementMetrics other) {
+      mSql = other.mSql;
+      mSequence = other.mSequence;
+      mLatency = new SQLiteLatencyHistogram(other.mLatency);
+      mRowCount = other.mRowCount;
+      mWindowFillCount = other.mWindowFillCount;
+      mCacheHitCount = other.mCacheHitCount;
+      mCacheMissCount = other.mCacheMissCount;
+    }
+
+    /**
+     * @return the normalized SQL of the statement
+     */
+    public String getSql() {
+      return mSql;
+    }
+
+    /**
+     * @return the number of executions: runs of the statement, or for queries,
+     * windows filled with their rows
+     */
+    public long getExecutionCount() {
+      return mLatency.getCount();
+    }
+
+    /**
+     * @return the total time spent executing the statement, in nanoseconds
+     */
+    public long getTotalTimeNanos() {
+      return mLatency.getTotalNanos();
+    }
+
+    /**
+     * @return the distribution of the time of each execution
+     */
+    public SQLiteLatencyHistogram getLatency() {
+      return mLatency;
+    }
+
+    /**
+     * @return the number of rows read into windows by queries and simple queries,
+     * or changed by other statements
+     */
+    public long getRowCount() {
+      return mRowCount;
+    }
+
+    /**
+     * @return the number of windows a query filled
+     */
+    public long getWindowFillCount() {
+      return mWindowFillCount;
+    }
+
+    /**
+     * @return the number of times the statement was compiled and found in the
+     * compiled-sql cache
+     */
+    public long getCacheHitCount() {
+      return mCacheHitCount;
+    }
+
+    /**
+     * @return the number of times the statement was compiled and not found in the
+     * compiled-sql cache
+     */
+    public long getCacheMissCount() {
+      return mCacheMissCount;
+    }
+
+    @Override
+    public String toString() {
+      return mSql + ": executions=" + getExecutionCount() +
+          " totalMs=" + getTotalTimeNanos() / 1000000 +
+          " p50Us=" + mLatency.getNanosAtPercentile(50) / 1000 +
+          " p99Us=" + mLatency.getNanosAtPercentile(99) / 1000 +
+          " rows=" + mRowCount + " windowFills=" + mWindowFillCount +
+          " cacheHits=" + mCacheHitCount + " cacheMisses=" + mCacheMissCount;
+    }
+  }
+
+  /** The metrics by normalized SQL */
+  private final ConcurrentHashMap<String, StatementMetrics> mStatements =
+      new ConcurrentHashMap<String, StatementMetrics>();
+
+  /** The metrics by the SQL as it was executed, only for SQL without literals */
+  private final ConcurrentHashMap<String, StatementMetrics> mStatementsByRawSql =
+      new ConcurrentHashMap<String, StatementMetrics>();
+
+  /** Numbers the statements in the order they were first recorded */
+  private final AtomicLong mSequence = new AtomicLong();
+
+  private volatile boolean mEnabled = true;
+
+  /* package */ SQLiteMetrics() {
+  }
+
+  /**
+   * Turns recording on or off. Turning it off keeps the metrics recorded so far.
+   */
+  public void setEnabled(boolean enabled) {
+    mEnabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return mEnabled;
+  }
+
+  /**
+   * @return snapshots of the metrics of every statement, in the order they were first
+   * executed
+   */
+  public List<StatementMetrics> getStatementMetrics() {
+    List<StatementMetrics> snapshot = new ArrayList<StatementMetrics>(mStatements.size());
+    for (StatementMetrics metrics : mStatements.values()) {
+      synchronized (metrics) {
+        snapshot.add(new StatementMetrics(metrics));
+      }
+    }
+    Collections.sort(snapshot, FIRST_RECORDED_ORDER);
+    return snapshot;
+  }
+
+  /**
+   * @param sql the SQL of a statement, normalized or not
+   * @return a snapshot of the metrics of the statement, or null if it was not executed
+   */
+  public StatementMetrics getStatementMetrics(String sql) {
+    StatementMetrics metrics = mStatements.get(normalizeSql(sql));
+    if (metrics == null) {
+      return null;
+    }
+    synchronized (metrics) {
+      return new StatementMetrics(metrics);
+    }
+  }
+
+  /**
+   * Discards all the metrics recorded so far. Executions that are being recorded
+   * concurrently may be lost.
+   */
+  public void reset() {
+    mStatementsByRawSql.clear();
+    mStatements.clear();
+  }
+
+  /* package */ void recordExecution(String sql, long timeStartNanos, long rows) {
+    if (!mEnabled) return;
+    long elapsed = System.nanoTime() - timeStartNanos;
+    StatementMetrics metrics = getOrCreate(sql);
+    if (metrics == null) return;
+    synchronized (metrics) {
+      metrics.mLatency.record(elapsed);
+      metrics.mRowCount += rows;
+    }
+  }
+
+  /* package */ void recordWindowFill(String sql, long timeStartNanos, long rows) {
+    if (!mEnabled) return;
+    long elapsed = System.nanoTime() - timeStartNanos;
+    StatementMetrics metrics = getOrCreate(sql);
+    if (metrics == null) return;
+    synchronized (metrics) {
+      metrics.mLatency.record(elapsed);
+      metrics.mRowCount += rows;
+      metrics.mWindowFillCount++;
+    }
+  }
+
+  /* package */ void recordCompile(String sql, boolean cacheHit) {
+    if (!mEnabled) return;
+    StatementMetrics metrics = getOrCreate(sql);
+    if (metrics == null) return;
+    synchronized (metrics) {
+      if (cacheHit) {
+        metrics.mCacheHitCount++;
+      } else {
+        metrics.mCacheMissCount++;
+      }
+    }
+  }
+
+  /**
+   * Returns the live metrics of a statement, creating them if needed, or null for a
+   * statement that sets a key. Normalizing happens outside of any lock.
+   */
+  private StatementMetrics getOrCreate(String sql) {
+    StatementMetrics metrics = mStatementsByRawSql.get(sql);
+    if (metrics != null) {
+      return metrics;
+    }
+    if (isKeyStatement(sql)) {
+      return null;
+    }
+    String normalized = normalizeSql(sql);
+    metrics = mStatements.get(normalized);
+    if (metrics == null) {
+      if (mStatements.size() >= MAX_STATEMENTS) {
+        normalized = OTHER_SQL;
+        metrics = mStatements.get(normalized);
+      }
+      if (metrics == null) {
+        StatementMetrics created =
+            new StatementMetrics(normalized, mSequence.getAndIncrement());
+        metrics = mStatements.putIfAbsent(normalized, created);
+        if (metrics == null) {
+          metrics = created;
+        }
+      }
+    }
+    // the raw string is only a key when it has no literals, which could hold secrets
+    if (mStatementsByRawSql.size() < MAX_RAW_SQL && !hasLiterals(sql, normalized)) {
+      mStatementsByRawSql.put(sql, metrics);
+    }
+    return metrics;
+  }
+
+  /**
+   * @return true if the statement sets a key: {@code PRAGMA key}, {@code PRAGMA rekey}
+   * and their variants such as {@code hexkey}, or {@code ATTACH ... KEY}
+   */
+  /* package */ static boolean isKeyStatement(String sql) {
+    int length = sql.length();
+    int start = 0;
+    while (start < length && Character.isWhitespace(sql.charAt(start))) {
+      start++;
+    }
+    if (sql.regionMatches(true, start, "ATTACH", 0, 6)) {
+      return indexOfWord(sql, start + 6, "KEY") >= 0;
+    }
+    if (!sql.regionMatches(true, start, "PRAGMA", 0, 6)) {
+      return false;
+    }
+    // the pragma name, after an optional schema name
+    int i = start + 6;
+    int nameEnd = i;
+    while (i < length) {
+      char c = sql.charAt(i);
+      if (Character.isWhitespace(c) || c == '.' || c == '"' || c == '`' || c == '[' || c == ']') {
+        i++;
+      } else if (Character.isLetterOrDigit(c) || c == '_') {
+        while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_')) {
+          i++;
+        }
+        nameEnd = i;
+      } else {
+        break;
+      }
+    }
+    return nameEnd >= 3 && sql.regionMatches(true, nameEnd - 3, "KEY", 0, 3);
+  }
+
+  private static int indexOfWord(String sql, int from, String word) {
+    int length = sql.length();
+    for (int i = from; i + word.length() <= length; i++) {
+      if (sql.regionMatches(true, i, word, 0, word.length())
+          && (i == 0 || !isIdentifierChar(sql.charAt(i - 1)))
+          && (i + word.length() == length || !isIdentifierChar(sql.charAt(i + word.length())))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return true if normalizing replaced any literal of the SQL with ?
+   */
+  private static boolean hasLiterals(String sql, String normalized) {
+    return count(normalized, '?') != count(sql, '?');
+  }
+
+  private static int count(String s, char c) {
+    int count = 0;
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) == c) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Collapses whitespace, replaces string and numeric literals with ? and drops the
+   * trailing semicolon, so that statements differing only in their values compare
+   * equal.
+   */
+  /* package */ static String normalizeSql(String sql) {
+    int length = sql.length();
+    StringBuilder normalized = new StringBuilder(length);
+    boolean space = false;
+    for (int i = 0; i < length; i++) {
+      char c = sql.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = normalized.length() > 0;
+        continue;
+      }
+      if (space) {
+        normalized.append(' ');
+        space = false;
+      }
+      if (c == '\'') {
+        // skip the string literal, '' is an escaped quote
+        i++;
+        while (i < length) {
+          if (sql.charAt(i) == '\'') {
+            if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+              i++;
+            } else {
+              break;
+            }
+          }
+          i++;
+        }
+        normalized.append('?');
+      } else if (c == '"' || c == '`' || c == '[') {
+        // copy quoted identifiers as they are
+        char close = c == '[' ? ']' : c;
+        int end = sql.indexOf(close, i + 1);
+        end = end < 0 ? length - 1 : end;
+        normalized.append(sql, i, end + 1);
+        i = end;
+      } else if (Character.isDigit(c) && !isIdentifierPart(normalized)) {
+        while (i + 1 < length && (Character.isLetterOrDigit(sql.charAt(i + 1)) ||
+                                  sql.charAt(i + 1) == '.')) {
+          i++;
+        }
+        normalized.append('?');
+      } else {
+        normalized.append(c);
+      }
+    }
+    int end = normalized.length();
+    while (end > 0 && (normalized.charAt(end - 1) == ';' || normalized.charAt(end - 1) == ' ')) {
+      end--;
+    }
+    normalized.setLength(end);
+    return normalized.toString();
+  }
+
+  private static boolean isIdentifierPart(StringBuilder normalized) {
+    if (normalized.length() == 0) {
+      return false;
+    }
+    return isIdentifierChar(normalized.charAt(normalized.length() - 1));
+  }
+
+  private static boolean isIdentifierChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+}
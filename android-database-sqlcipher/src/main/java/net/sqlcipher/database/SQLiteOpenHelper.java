@@ -17,6 +17,12 @@
 package net.sqlcipher.database;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteException;
@@ -46,10 +52,14 @@ public abstract class SQLiteOpenHelper {
     private final DatabaseErrorHandler mErrorHandler;
     private boolean mEnableWriteAheadLogging;
     private boolean mDeferSetWriteAheadLoggingEnabled;
+    private boolean mNonFairLocking;
 
     private SQLiteDatabase mDatabase = null;
     private boolean mIsInitializing = false;
 
+    /** The open started by {@link #openAhead}, null if none was started or it failed */
+    private FutureTask<SQLiteDatabase> mOpenAhead;
+
     /**
      * Create a helper object to create, open, and/or manage a database.
      * This method always returns very quickly.  The database is not actually
@@ -164,7 +174,9 @@ public abstract class SQLiteOpenHelper {
                 if (!dbPathFile.exists()) {
                 	dbPathFile.getParentFile().mkdirs();
                 }
-                db = SQLiteDatabase.openOrCreateDatabase(path, password, mFactory, mHook, mErrorHandler);
+                db = SQLiteDatabase.openDatabase(path, password, mFactory,
+                                                 SQLiteDatabase.CREATE_IF_NECESSARY | getLockingFlags(),
+                                                 mHook, mErrorHandler);
             }
             if(mDeferSetWriteAheadLoggingEnabled) {
               mEnableWriteAheadLogging = db.enableWriteAheadLogging();
@@ -261,7 +273,9 @@ public abstract class SQLiteOpenHelper {
                 mIsInitializing = true;
                 db.close();
             }
-            db = SQLiteDatabase.openDatabase(path, password, mFactory, SQLiteDatabase.OPEN_READONLY, mHook, mErrorHandler);
+            db = SQLiteDatabase.openDatabase(path, password, mFactory,
+                                             SQLiteDatabase.OPEN_READONLY | getLockingFlags(),
+                                             mHook, mErrorHandler);
             if (db.getVersion() != mNewVersion) {
                 throw new SQLiteException("Can't upgrade read-only database from version " +
                         db.getVersion() + " to " + mNewVersion + ": " + path);
@@ -277,12 +291,120 @@ public abstract class SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Starts opening the database for reading and writing on a background thread, to
+     * take the cost of opening, keying and upgrading it off the thread that first needs
+     * it. Callers of {@link #getWritableDatabase} or {@link #getReadableDatabase} while
+     * the open is running wait for it to complete and get the database it opened, the
+     * same as calling {@link Future#get()} on the returned future.
+     *
+     * <p>Calling this again while the open is pending or after it succeeded returns the
+     * same future; calling it after it failed starts a new one. The password is copied,
+     * so the caller may clear it once this returns.</p>
+     *
+     * @param password to open the database with
+     * @return a future of the database, as returned by {@link #getWritableDatabase}
+     */
+    public Future<SQLiteDatabase> openAhead(byte[] password) {
+        return openAhead(password, null);
+    }
+
+    /**
+     * Same as {@link #openAhead(byte[])}, with the password encoded as by
+     * {@link SQLiteDatabase#getBytes(char[])}. The password and its encoded copy are
+     * not kept, so the caller may clear the password once this returns.
+     *
+     * @param password to open the database with
+     * @return a future of the database, as returned by {@link #getWritableDatabase}
+     */
+    public Future<SQLiteDatabase> openAhead(char[] password) {
+        byte[] keyMaterial = password == null ? null : SQLiteDatabase.getBytes(password);
+        try {
+            return openAhead(keyMaterial, null);
+        } finally {
+            // openAhead(byte[], Executor) keeps a copy of its own
+            if (keyMaterial != null) {
+                Arrays.fill(keyMaterial, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #openAhead(byte[])}, running the open on the given executor.
+     *
+     * @param password to open the database with
+     * @param executor to run the open on, or null to run it on a new thread
+     * @return a future of the database, as returned by {@link #getWritableDatabase}
+     */
+    public synchronized Future<SQLiteDatabase> openAhead(byte[] password, Executor executor) {
+        if (mOpenAhead != null && !isFailed(mOpenAhead)) {
+            return mOpenAhead;
+        }
+        OpenAheadCallable callable = new OpenAheadCallable(password == null ? null : password.clone());
+        FutureTask<SQLiteDatabase> task = new FutureTask<SQLiteDatabase>(callable);
+        callable.mTask = task;
+        mOpenAhead = task;
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            new Thread(task, "SQLiteOpenHelper open " + mName).start();
+        }
+        return task;
+    }
+
+    private class OpenAheadCallable implements Callable<SQLiteDatabase> {
+        private final byte[] mKeyMaterial;
+        private FutureTask<SQLiteDatabase> mTask;
+
+        OpenAheadCallable(byte[] keyMaterial) {
+            mKeyMaterial = keyMaterial;
+        }
+
+        public SQLiteDatabase call() {
+            // hold the helper lock from the cancellation check on, so that close()
+            // cannot cancel the open once it has started
+            synchronized (SQLiteOpenHelper.this) {
+                try {
+                    if (mTask.isCancelled()) {
+                        throw new CancellationException();
+                    }
+                    return getWritableDatabase(mKeyMaterial);
+                } finally {
+                    if (mKeyMaterial != null) {
+                        Arrays.fill(mKeyMaterial, (byte) 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isFailed(Future<SQLiteDatabase> future) {
+        if (future.isCancelled()) {
+            return true;
+        }
+        if (!future.isDone()) {
+            return false;
+        }
+        try {
+            future.get();
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
     /**
      * Close any open database object.
      */
     public synchronized void close() {
         if (mIsInitializing) throw new IllegalStateException("Closed during initialization");
 
+        if (mOpenAhead != null) {
+            // an open that has not started yet would otherwise reopen the database
+            mOpenAhead.cancel(false);
+            mOpenAhead = null;
+        }
+
         if (mDatabase != null && mDatabase.isOpen()) {
             mDatabase.close();
             mDatabase = null;
@@ -325,6 +447,23 @@ public abstract class SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Chooses the lock policy of the databases opened from now on: a fair lock, which
+     * is the default, or a non-fair one that gives a higher throughput when several
+     * threads run short statements. A database that is already open keeps its lock.
+     *
+     * @param enabled True to open the database with a non-fair lock
+     *
+     * @see SQLiteDatabase#NON_FAIR_LOCKING
+     */
+    public synchronized void setNonFairLockingEnabled(boolean enabled) {
+        mNonFairLocking = enabled;
+    }
+
+    private int getLockingFlags() {
+        return mNonFairLocking ? SQLiteDatabase.NON_FAIR_LOCKING : 0;
+    }
+
     /**
      * Called when the database needs to be downgraded. This is strictly similar to
      * {@link #onUpgrade} method, but is called whenever current version is newer than requested one.
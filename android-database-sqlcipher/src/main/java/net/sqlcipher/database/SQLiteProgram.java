@@ -85,12 +85,15 @@ public abstract class SQLiteProgram extends SQLiteClosable implements
         }
 
         // it is not pragma
+        // the cache hands out a compiled-sql obj that is not in use by any other
+        // SQLiteProgram, already acquired by me.
         mCompiledSql = db.getCompiledStatementForSql(sql);
+        db.getMetrics().recordCompile(mSql, mCompiledSql != null);
         if (mCompiledSql == null) {
             // create a new compiled-sql obj
             mCompiledSql = new SQLiteCompiledSql(db, sql);
 
-            // add it to the cache of compiled-sqls
+            // add it to the pool of compiled-sqls for this sql
             // but before adding it and thus making it available for anyone else to use it,
             // make sure it is acquired by me.
             mCompiledSql.acquire();
@@ -99,24 +102,6 @@ public abstract class SQLiteProgram extends SQLiteClosable implements
                 Log.v(TAG, "Created DbObj (id#" + mCompiledSql.nStatement +
                         ") for sql: " + sql);
             }
-        } else {
-            // it is already in compiled-sql cache.
-            // try to acquire the object.
-            if (!mCompiledSql.acquire()) {
-                long last = mCompiledSql.nStatement;
-                // the SQLiteCompiledSql in cache is in use by some other SQLiteProgram object.
-                // we can't have two different SQLiteProgam objects can't share the same
-                // CompiledSql object. create a new one.
-                // finalize it when I am done with it in "this" object.
-                mCompiledSql = new SQLiteCompiledSql(db, sql);
-                if (SQLiteDebug.DEBUG_ACTIVE_CURSOR_FINALIZATION) {
-                    Log.v(TAG, "** possible bug ** Created NEW DbObj (id#" +
-                            mCompiledSql.nStatement +
-                            ") because the previously created DbObj (id#" + last +
-                            ") was not released for sql:" + sql);
-                }
-                // since it is not in the cache, no need to acquire() it.
-            }
         }
         nStatement = mCompiledSql.nStatement;
     }
@@ -138,18 +123,11 @@ public abstract class SQLiteProgram extends SQLiteClosable implements
         if (mCompiledSql == null) {
             return;
         }
-        synchronized(mDatabase.mCompiledQueries) {
-            if (!mDatabase.mCompiledQueries.containsValue(mCompiledSql)) {
-                // it is NOT in compiled-sql cache. i.e., responsibility of
-                // releasing this statement is on me.
-                mCompiledSql.releaseSqlStatement();
-                mCompiledSql = null;
-                nStatement = 0;
-            } else {
-                // it is in compiled-sql cache. reset its CompiledSql#mInUse flag
-                mCompiledSql.release();
-            }
-        }
+        // if it is NOT in compiled-sql cache, it is released; otherwise its
+        // CompiledSql#mInUse flag is reset so that others can use it.
+        mDatabase.releaseCompiledSql(mCompiledSql);
+        mCompiledSql = null;
+        nStatement = 0;
     }
 
     /**
@@ -17,9 +17,11 @@
 package net.sqlcipher.database;
 import net.sqlcipher.*;
 
+import java.util.Arrays;
+
 import android.database.sqlite.SQLiteDatabaseCorruptException;
 import android.database.sqlite.SQLiteMisuseException;
-import android.os.SystemClock;
+import android.os.CancellationSignal;
 import android.util.Log;
 
 /**
@@ -35,9 +37,37 @@ public class SQLiteQuery extends SQLiteProgram {
     /** The index of the unbound OFFSET parameter */
     private int mOffsetIndex;
 
-    /** Args to bind on requery */
-    private String[] mBindArgs;
-    private Object[] mObjectBindArgs;
+    /**
+     * The values bound through this query, by 1-based index - 1, restored when the
+     * keyset parameter was bound to a seek key and the query has to start over
+     */
+    private Object[] mBoundArgs;
+
+    /**
+     * The row the statement was left on by the last fill, which stopped at a full window
+     * without counting the remaining rows and kept the statement positioned, or -1. Set
+     * by native code, do not rename.
+     */
+    private int mResumePosition = -1;
+
+    /** The row the statement returns next after {@link #seekToKey}, or -1 */
+    private int mSeekPosition = -1;
+
+    /** Whether the keyset parameter is bound to a seek key instead of its original value */
+    private boolean mSeekKeyBound = false;
+
+    /** Cancels the statement while this query is running it, or null */
+    private CancellationSignal mCancellationSignal;
+
+    /** The signal attached by {@link #attachCancellationSignal()}, or null */
+    private CancellationSignal mAttachedSignal;
+
+    private final CancellationSignal.OnCancelListener mCancelListener =
+        new CancellationSignal.OnCancelListener() {
+            public void onCancel() {
+                mDatabase.cancel();
+            }
+        };
 
     /**
      * Create a persistent query object.
@@ -50,15 +80,13 @@ public class SQLiteQuery extends SQLiteProgram {
         super(db, query);
 
         mOffsetIndex = offsetIndex;
-        mBindArgs = bindArgs;
+        mBoundArgs = new Object[bindArgs != null ? bindArgs.length : 0];
     }
 
     SQLiteQuery(SQLiteDatabase db, String query, int offsetIndex, Object[] bindArgs) {
         super(db, query);
         mOffsetIndex = offsetIndex;
-        mObjectBindArgs = bindArgs;
-        int length = mObjectBindArgs != null ? mObjectBindArgs.length : 0;
-        mBindArgs = new String[length];
+        mBoundArgs = new Object[bindArgs != null ? bindArgs.length : 0];
     }
 
     /**
@@ -70,20 +98,73 @@ public class SQLiteQuery extends SQLiteProgram {
     /* package */
     int fillWindow(CursorWindow window,
                    int maxRead, int lastPos) {
-        long timeStart = SystemClock.uptimeMillis();
+        return fillWindow(window, maxRead, lastPos, true, false);
+    }
+
+    /**
+     * Reads rows into a buffer. This method acquires the database lock.
+     *
+     * <p>If the previous call kept the statement positioned at or before the start of
+     * the window, or {@link #seekToKey} positioned it at the start of the window, the
+     * statement continues from there instead of being re-run and stepped over all the
+     * rows before the window. A window starting before the row the statement was left
+     * on, such as the windows SQLiteCursor picks around the row being moved to, runs the
+     * statement again from its first row.</p>
+     *
+     * @param window The window to fill into
+     * @param countAllRows if false and the window fills up, the rows after it are not
+     *     counted
+     * @param keepPositioned if true, countAllRows is false and the window fills up, the
+     *     statement is left on the next row for the next call. It then stays active,
+     *     holding a read transaction on the database, until it is finished or reset;
+     *     otherwise it is reset before returning
+     * @return number of total rows in the query, or if countAllRows is false and the
+     *     window filled up, a number greater than the last row in the window
+     */
+    /* package */
+    int fillWindow(CursorWindow window,
+                   int maxRead, int lastPos, boolean countAllRows, boolean keepPositioned) {
         mDatabase.lock();
         try {
             acquireReference();
             try {
                 window.acquireReference();
+                int startPos = window.getStartPosition();
+                int skipRows = startPos;
+                boolean rowPending = false;
+                if (mSeekPosition >= 0 && mSeekPosition == startPos) {
+                    // the statement returns the first row of the window next
+                    skipRows = 0;
+                } else if (mResumePosition >= 0 && mResumePosition <= startPos &&
+                           mOffsetIndex == 0) {
+                    // the statement is on a row at or before the start of the window
+                    skipRows = startPos - mResumePosition;
+                    rowPending = true;
+                } else if (mResumePosition >= 0 || mSeekPosition >= 0 || mSeekKeyBound) {
+                    // start over from the first row with the original arguments
+                    restartLocked();
+                }
+                mResumePosition = -1;
+                mSeekPosition = -1;
+                attachCancellationSignal();
+                long timeStart = mDatabase.markStatementStart(mSql);
                 // if the start pos is not equal to 0, then most likely window is
                 // too small for the data set, loading by another thread
                 // is not safe in this situation. the native code will ignore maxRead
                 int numRows = native_fill_window(window,
-                                                 window.getStartPosition(),
+                                                 startPos,
                                                  window.getRequiredPosition(),
                                                  mOffsetIndex,
-                                                 maxRead, lastPos);
+                                                 maxRead, lastPos,
+                                                 skipRows, rowPending,
+                                                 countAllRows);
+                if (mResumePosition >= 0 && !keepPositioned) {
+                    // don't leave the statement active, holding a read transaction,
+                    // between fills
+                    native_reset();
+                    mResumePosition = -1;
+                }
+                mDatabase.getMetrics().recordWindowFill(mSql, timeStart, window.getNumRows());
 
                 // Logging
                 if (SQLiteDebug.DEBUG_SQL_STATEMENTS) {
@@ -97,6 +178,7 @@ public class SQLiteQuery extends SQLiteProgram {
                 mDatabase.onCorruption();
                 throw e;
             } finally {
+                detachCancellationSignal();
                 window.releaseReference();
             }
         } finally {
@@ -105,6 +187,125 @@ public class SQLiteQuery extends SQLiteProgram {
         }
     }
 
+    /**
+     * Positions the statement so that the next fill starting at the given position
+     * continues from there, by binding the key of the row just before that position to
+     * the keyset parameter. The query must return its rows ordered by a unique key and
+     * only return the rows whose key is greater than that parameter. The database must
+     * be locked when calling this method.
+     *
+     * @param position the position of the first row after the row with the given key
+     * @param keyIndex the 1-based index of the keyset parameter
+     * @param key the key of the row before position
+     */
+    /* package */ void seekToKey(int position, int keyIndex, Object key) {
+        resetLocked();
+        mResumePosition = -1;
+        // bind through SQLiteProgram so that the original argument stays recorded
+        if (key == null) {
+            super.bindNull(keyIndex);
+        } else if (key instanceof Long) {
+            super.bindLong(keyIndex, (Long)key);
+        } else if (key instanceof Double) {
+            super.bindDouble(keyIndex, (Double)key);
+        } else if (key instanceof byte[]) {
+            super.bindBlob(keyIndex, (byte[])key);
+        } else {
+            super.bindString(keyIndex, key.toString());
+        }
+        mSeekPosition = position;
+        mSeekKeyBound = true;
+    }
+
+    /**
+     * Counts the rows of the query by stepping the statement over them without reading
+     * them. If the last fill left the statement positioned, only the rows from there on
+     * are stepped over. Either way the statement is reset, so the next fill runs it
+     * again from its first row. The database must be locked when calling this method.
+     *
+     * @return the number of rows in the query
+     */
+    /* package */ int countRowsLocked() {
+        acquireReference();
+        try {
+            attachCancellationSignal();
+            int count;
+            if (mResumePosition >= 0 && mOffsetIndex == 0) {
+                // the rows before the pending one have been read already
+                count = mResumePosition + native_count_rows(true);
+            } else {
+                if (mSeekPosition >= 0 || mSeekKeyBound) {
+                    restartLocked();
+                } else {
+                    native_reset();
+                }
+                count = native_count_rows(false);
+            }
+            mResumePosition = -1;
+            mSeekPosition = -1;
+            return count;
+        } catch (SQLiteDatabaseCorruptException e) {
+            mDatabase.onCorruption();
+            throw e;
+        } finally {
+            detachCancellationSignal();
+            releaseReference();
+        }
+    }
+
+    /**
+     * Sets the signal that cancels this query: cancelling it while the query is filling
+     * a window or counting its rows aborts the statement, see
+     * {@link SQLiteDatabase#cancel()}, and makes the call throw
+     * {@link android.os.OperationCanceledException}. Once cancelled, every later fill
+     * throws it without running the statement. Other statements of the connection,
+     * including those kept active by other cursors, are not affected.
+     *
+     * @param cancellationSignal the signal, or null to remove it
+     */
+    /* package */ void setCancellationSignal(CancellationSignal cancellationSignal) {
+        mCancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Throws if the query has been cancelled, otherwise lets the cancellation signal
+     * cancel the statement until {@link #detachCancellationSignal()}. Must only be
+     * called while the database is locked, so that the statement the signal cancels
+     * is this query's.
+     */
+    private void attachCancellationSignal() {
+        if (mCancellationSignal != null) {
+            mCancellationSignal.throwIfCanceled();
+            // make the connection cancelable first: a signal cancelled in the meantime
+            // calls the listener right away
+            mDatabase.attachCancellation();
+            mAttachedSignal = mCancellationSignal;
+            mAttachedSignal.setOnCancelListener(mCancelListener);
+        }
+    }
+
+    private void detachCancellationSignal() {
+        if (mAttachedSignal != null) {
+            // waits for a cancellation in progress, so it can't cancel a later statement
+            mAttachedSignal.setOnCancelListener(null);
+            mAttachedSignal = null;
+            mDatabase.detachCancellation();
+        }
+    }
+
+    /**
+     * Resets the statement so that it can be re-bound and re-run from its first row.
+     * The database must be locked when calling this method.
+     */
+    private void resetLocked() {
+        acquireReference();
+        try {
+            native_reset();
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Get the column count for the statement. Only valid on query based
      * statements. The database must be locked
@@ -142,25 +343,46 @@ public class SQLiteQuery extends SQLiteProgram {
         return "SQLiteQuery: " + mSql;
     }
 
+    @Override
+    protected void onAllReferencesReleased() {
+        if (mResumePosition >= 0 || mSeekPosition >= 0) {
+            // don't hand a positioned statement back to the compiled-sql cache
+            native_reset();
+            mResumePosition = -1;
+            mSeekPosition = -1;
+        }
+        super.onAllReferencesReleased();
+    }
+
     /**
      * Called by SQLiteCursor when it is requeried.
      */
     /* package */ void requery() {
-        if (mBindArgs != null) {
-            int len = mBindArgs.length;
+        restartLocked();
+    }
+
+    /**
+     * Resets the statement so that the next fill runs it from its first row. The values
+     * bound through this query stay bound, as sqlite keeps them across a reset, unless
+     * the keyset parameter was bound to a seek key, in which case they are bound again.
+     * The database must be locked when calling this method.
+     */
+    private void restartLocked() {
+        resetLocked();
+        mResumePosition = -1;
+        mSeekPosition = -1;
+        if (mSeekKeyBound) {
+            mSeekKeyBound = false;
+            int len = mBoundArgs.length;
             try {
-                if(mObjectBindArgs != null) {
-                    bindArguments(mObjectBindArgs);
-                } else {
-                    for (int i = 0; i < len; i++) {
-                        super.bindString(i + 1, mBindArgs[i]);
-                    }
+                for (int i = 0; i < len; i++) {
+                    bindValue(i + 1, mBoundArgs[i]);
                 }
             } catch (SQLiteMisuseException e) {
                 StringBuilder errMsg = new StringBuilder("mSql " + mSql);
                 for (int i = 0; i < len; i++) {
                     errMsg.append(" ");
-                    errMsg.append(mBindArgs[i]);
+                    errMsg.append(mBoundArgs[i] instanceof byte[] ? "<blob>" : mBoundArgs[i]);
                 }
                 errMsg.append(" ");
                 IllegalStateException leakProgram = new IllegalStateException(
@@ -170,30 +392,64 @@ public class SQLiteQuery extends SQLiteProgram {
         }
     }
 
+    /** Binds a recorded value the way it was bound, without recording it again */
+    private void bindValue(int index, Object value) {
+        if (value == null) {
+            super.bindNull(index);
+        } else if (value instanceof Long) {
+            super.bindLong(index, (Long)value);
+        } else if (value instanceof Double) {
+            super.bindDouble(index, (Double)value);
+        } else if (value instanceof byte[]) {
+            super.bindBlob(index, (byte[])value);
+        } else {
+            super.bindString(index, (String)value);
+        }
+    }
+
+    private void recordBoundArg(int index, Object value) {
+        if (index > mBoundArgs.length) {
+            mBoundArgs = Arrays.copyOf(mBoundArgs, index);
+        }
+        mBoundArgs[index - 1] = value;
+    }
+
     @Override
     public void bindNull(int index) {
-        mBindArgs[index - 1] = null;
+        recordBoundArg(index, null);
         if (!mClosed) super.bindNull(index);
     }
 
     @Override
     public void bindLong(int index, long value) {
-        mBindArgs[index - 1] = Long.toString(value);
+        recordBoundArg(index, value);
         if (!mClosed) super.bindLong(index, value);
     }
 
     @Override
     public void bindDouble(int index, double value) {
-        mBindArgs[index - 1] = Double.toString(value);
+        recordBoundArg(index, value);
         if (!mClosed) super.bindDouble(index, value);
     }
 
     @Override
     public void bindString(int index, String value) {
-        mBindArgs[index - 1] = value;
+        recordBoundArg(index, value);
         if (!mClosed) super.bindString(index, value);
     }
 
+    @Override
+    public void bindBlob(int index, byte[] value) {
+        recordBoundArg(index, value);
+        super.bindBlob(index, value);
+    }
+
+    @Override
+    public void clearBindings() {
+        Arrays.fill(mBoundArgs, null);
+        super.clearBindings();
+    }
+
     public void bindArguments(Object[] args){
         if(args != null && args.length > 0){
             for(int i = 0; i < args.length; i++){
@@ -224,7 +480,12 @@ public class SQLiteQuery extends SQLiteProgram {
     private final native int native_fill_window(CursorWindow window,
                                                 int startPos, int requiredPos,
                                                 int offsetParam, int maxRead,
-                                                int lastPos);
+                                                int lastPos, int skipRows,
+                                                boolean rowPending, boolean countAllRows);
+
+    private final native void native_reset();
+
+    private final native int native_count_rows(boolean rowPending);
 
     private final native int native_column_count();
 
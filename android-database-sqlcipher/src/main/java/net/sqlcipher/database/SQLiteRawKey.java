@@ -0,0 +1,161 @@
+package net.sqlcipher.database;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The raw key of an encrypted database, in SQLCipher's {@code x'...'} form: the key
+ * derived from the passphrase followed by the database salt, both hex encoded.
+ * Opening a database with its raw key, see
+ * {@link SQLiteDatabase#openDatabase(String, SQLiteRawKey, SQLiteDatabase.CursorFactory, int, SQLiteDatabaseHook, android.database.DatabaseErrorHandler)},
+ * skips the PBKDF2 key derivation that makes opening with a passphrase slow.
+ *
+ * <p>The raw key is exported once from a database opened with its passphrase, see
+ * {@link SQLiteDatabase#exportRawKey(byte[])}, or supplied by the application from a
+ * form of its own, for instance a keystore. The key is kept in native memory outside
+ * of the Java heap, so the garbage collector never copies it, and is overwritten with
+ * zeroes by {@link #close()}. The raw key gives access to the database just like its
+ * passphrase does, so it should be held no longer than it is needed.</p>
+ */
+public class SQLiteRawKey implements Closeable {
+
+  /** The longest raw key accepted: a 64 byte key and a 64 byte salt, hex encoded */
+  /* package */ static final int MAX_LENGTH = 3 + 2 * (64 + 64);
+
+  /** The size of the keys SQLCipher derives for AES-256 */
+  private static final int KEY_SIZE = 32;
+
+  private final ByteBuffer mKey;
+  private int mLength;
+
+  /**
+   * Copies a raw key, such as one kept by the application in a form of its own. The
+   * caller should clear the given array once this returns.
+   *
+   * @param rawKey the key in the {@code x'...'} form, as ASCII
+   * @throws IllegalArgumentException if the key is not in the {@code x'...'} form
+   */
+  public SQLiteRawKey(byte[] rawKey) {
+    if (!isRawKey(rawKey, rawKey.length)) {
+      throw new IllegalArgumentException("raw key must be in the x'<hex>' form");
+    }
+    mKey = ByteBuffer.allocateDirect(MAX_LENGTH);
+    mKey.put(rawKey);
+    mLength = rawKey.length;
+  }
+
+  /**
+   * Derives a raw key from a passphrase the way SQLCipher does: PBKDF2 with the given
+   * HMAC over the passphrase and the database salt.
+   *
+   * @param password the passphrase as given to SQLCipher
+   * @param salt the database salt
+   * @param iterations the kdf_iter setting of the database
+   * @param macAlgorithm the JCA name of the HMAC, such as HmacSHA512
+   */
+  /* package */ SQLiteRawKey(byte[] password, byte[] salt, int iterations, String macAlgorithm) {
+    byte[] key = new byte[KEY_SIZE];
+    try {
+      pbkdf2(password, salt, iterations, macAlgorithm, key);
+      mKey = ByteBuffer.allocateDirect(MAX_LENGTH);
+      mKey.put((byte)'x').put((byte)'\'');
+      putHex(key);
+      putHex(salt);
+      mKey.put((byte)'\'');
+      mLength = mKey.position();
+    } finally {
+      Arrays.fill(key, (byte)0);
+    }
+  }
+
+  /**
+   * @return the native memory holding the key, only to be read while synchronized on
+   * this key after checking {@link #isValid()}
+   */
+  /* package */ ByteBuffer getBuffer() {
+    return mKey;
+  }
+
+  /* package */ synchronized int getLength() {
+    return mLength;
+  }
+
+  /**
+   * @return false once the key has been closed
+   */
+  public synchronized boolean isValid() {
+    return mLength > 0;
+  }
+
+  /**
+   * Overwrites the key with zeroes. The key cannot be used afterwards.
+   */
+  public synchronized void close() {
+    for (int i = 0; i < MAX_LENGTH; i++) {
+      mKey.put(i, (byte)0);
+    }
+    mLength = 0;
+  }
+
+  private void putHex(byte[] bytes) {
+    for (byte b : bytes) {
+      mKey.put((byte)Character.forDigit((b >> 4) & 0xf, 16));
+      mKey.put((byte)Character.forDigit(b & 0xf, 16));
+    }
+  }
+
+  /**
+   * PBKDF2 (RFC 2898) over the passphrase bytes as they are, which the JCA
+   * SecretKeyFactory cannot do since it takes the passphrase as characters.
+   */
+  private static void pbkdf2(byte[] password, byte[] salt, int iterations, String macAlgorithm,
+                             byte[] out) {
+    try {
+      Mac mac = Mac.getInstance(macAlgorithm);
+      mac.init(new SecretKeySpec(password, macAlgorithm));
+      int macLength = mac.getMacLength();
+      byte[] u = new byte[macLength];
+      byte[] t = new byte[macLength];
+      try {
+        for (int block = 1, offset = 0; offset < out.length; block++, offset += macLength) {
+          mac.update(salt);
+          mac.update(new byte[]{(byte)(block >>> 24), (byte)(block >>> 16),
+                                (byte)(block >>> 8), (byte)block});
+          mac.doFinal(u, 0);
+          System.arraycopy(u, 0, t, 0, macLength);
+          for (int i = 1; i < iterations; i++) {
+            mac.update(u);
+            mac.doFinal(u, 0);
+            for (int j = 0; j < macLength; j++) {
+              t[j] ^= u[j];
+            }
+          }
+          System.arraycopy(t, 0, out, offset, Math.min(macLength, out.length - offset));
+        }
+      } finally {
+        Arrays.fill(u, (byte)0);
+        Arrays.fill(t, (byte)0);
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("cannot derive the raw key with " + macAlgorithm, e);
+    }
+  }
+
+  private static boolean isRawKey(byte[] key, int length) {
+    if (length < 4 || length > MAX_LENGTH || key[0] != 'x' || key[1] != '\''
+        || key[length - 1] != '\'') {
+      return false;
+    }
+    for (int i = 2; i < length - 1; i++) {
+      if (Character.digit(key[i], 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
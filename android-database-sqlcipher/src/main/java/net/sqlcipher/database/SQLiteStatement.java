@@ -16,7 +16,11 @@
 
 package net.sqlcipher.database;
 
-import android.os.SystemClock;
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+
 import androidx.sqlite.db.SupportSQLiteStatement;
 
 /**
@@ -31,6 +35,12 @@ import androidx.sqlite.db.SupportSQLiteStatement;
 public class SQLiteStatement extends SQLiteProgram implements
     SupportSQLiteStatement
 {
+    /** Column types passed to native_execute_batch, must match the native side */
+    private static final int BATCH_COLUMN_LONG = 0;
+    private static final int BATCH_COLUMN_DOUBLE = 1;
+    private static final int BATCH_COLUMN_STRING = 2;
+    private static final int BATCH_COLUMN_BLOB = 3;
+
     /**
      * Don't use SQLiteStatement constructor directly, please use
      * {@link SQLiteDatabase#compileStatement(String)}
@@ -53,12 +63,13 @@ public class SQLiteStatement extends SQLiteProgram implements
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
         mDatabase.lock();
 
         acquireReference();
         try {
+            long timeStart = mDatabase.markStatementStart(mSql);
             native_execute();
+            mDatabase.getMetrics().recordExecution(mSql, timeStart, 0);
         } finally {
             releaseReference();
             mDatabase.unlock();
@@ -79,13 +90,15 @@ public class SQLiteStatement extends SQLiteProgram implements
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
         mDatabase.lock();
 
         acquireReference();
         try {
+            long timeStart = mDatabase.markStatementStart(mSql);
             native_execute();
-            return (mDatabase.lastChangeCount() > 0) ? mDatabase.lastInsertRow() : -1;
+            int changes = mDatabase.lastChangeCount();
+            mDatabase.getMetrics().recordExecution(mSql, timeStart, changes);
+            return (changes > 0) ? mDatabase.lastInsertRow() : -1;
         } finally {
             releaseReference();
             mDatabase.unlock();
@@ -97,13 +110,15 @@ public class SQLiteStatement extends SQLiteProgram implements
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
         mDatabase.lock();
 
         acquireReference();
         try {
+            long timeStart = mDatabase.markStatementStart(mSql);
             native_execute();
-            return mDatabase.lastChangeCount();
+            int changes = mDatabase.lastChangeCount();
+            mDatabase.getMetrics().recordExecution(mSql, timeStart, changes);
+            return changes;
         } finally {
             releaseReference();
             mDatabase.unlock();
@@ -123,12 +138,13 @@ public class SQLiteStatement extends SQLiteProgram implements
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
         mDatabase.lock();
 
         acquireReference();
         try {
+            long timeStart = mDatabase.markStatementStart(mSql);
             long retValue = native_1x1_long();
+            mDatabase.getMetrics().recordExecution(mSql, timeStart, 1);
             return retValue;
         } finally {
             releaseReference();
@@ -149,12 +165,13 @@ public class SQLiteStatement extends SQLiteProgram implements
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
         mDatabase.lock();
 
         acquireReference();
         try {
+            long timeStart = mDatabase.markStatementStart(mSql);
             String retValue = native_1x1_string();
+            mDatabase.getMetrics().recordExecution(mSql, timeStart, 1);
             return retValue;
         } finally {
             releaseReference();
@@ -162,7 +179,135 @@ public class SQLiteStatement extends SQLiteProgram implements
         }
     }
 
+    /**
+     * Execute a statement that returns a 1 by 1 table with a blob value, copying the
+     * value from SQLite straight into a read-only shared memory region instead of into
+     * a byte array.
+     *
+     * @return a descriptor of the shared memory holding the value, or null if the query
+     *         returns zero rows or a NULL value
+     *
+     * @throws IOException if the shared memory cannot be created
+     */
+    /* package */ AssetFileDescriptor simpleQueryForBlobAssetFile() throws IOException {
+        if (!mDatabase.isOpen()) {
+            throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
+        }
+        mDatabase.lock();
+
+        acquireReference();
+        try {
+            long timeStart = mDatabase.markStatementStart(mSql);
+            int[] length = new int[1];
+            int fd = native_1x1_blob_fd(length);
+            mDatabase.getMetrics().recordExecution(mSql, timeStart, fd < 0 ? 0 : 1);
+            if (fd < 0) {
+                return null;
+            }
+            return new AssetFileDescriptor(ParcelFileDescriptor.adoptFd(fd), 0, length[0]);
+        } finally {
+            releaseReference();
+            mDatabase.unlock();
+        }
+    }
+
+    /**
+     * Execute this INSERT statement once for every row of the given columns, inside a
+     * single transaction and a single native call. Column i binds parameter i + 1, there
+     * must be exactly one column per parameter, and each column is one of long[], double[], String[] or byte[][] with one element per
+     * row; null String or byte[] elements bind NULL. All columns must have the same length.
+     *
+     * @param columns the column-major values to bind, one array per statement parameter
+     * @return the row ID of each inserted row, or -1 for rows that were not inserted
+     *
+     * @throws android.database.SQLException If a row fails to bind or execute, in which
+     *         case none of the rows are committed
+     * @throws IllegalArgumentException If a column has an unsupported type, the columns
+     *         differ in length, or their number differs from the number of parameters
+     */
+    public long[] executeInsertBatch(Object... columns) {
+        return executeBatch(columns, true);
+    }
+
+    /**
+     * Execute this UPDATE or DELETE statement once for every row of the given columns,
+     * inside a single transaction and a single native call. The columns are bound as
+     * described for {@link #executeInsertBatch(Object...)}.
+     *
+     * @param columns the column-major values to bind, one array per statement parameter
+     * @return the number of rows affected by each execution
+     *
+     * @throws android.database.SQLException If a row fails to bind or execute, in which
+     *         case none of the rows are committed
+     * @throws IllegalArgumentException If a column has an unsupported type, the columns
+     *         differ in length, or their number differs from the number of parameters
+     */
+    public int[] executeUpdateDeleteBatch(Object... columns) {
+        long[] changes = executeBatch(columns, false);
+        int[] counts = new int[changes.length];
+        for (int i = 0; i < changes.length; i++) {
+            counts[i] = (int) changes[i];
+        }
+        return counts;
+    }
+
+    private long[] executeBatch(Object[] columns, boolean returnInsertIds) {
+        if (!mDatabase.isOpen()) {
+            throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
+        }
+        if (columns == null || columns.length == 0) {
+            throw new IllegalArgumentException("executeBatch requires at least one column");
+        }
+        int[] types = new int[columns.length];
+        int numRows = -1;
+        for (int i = 0; i < columns.length; i++) {
+            Object column = columns[i];
+            int length;
+            if (column instanceof long[]) {
+                types[i] = BATCH_COLUMN_LONG;
+                length = ((long[]) column).length;
+            } else if (column instanceof double[]) {
+                types[i] = BATCH_COLUMN_DOUBLE;
+                length = ((double[]) column).length;
+            } else if (column instanceof String[]) {
+                types[i] = BATCH_COLUMN_STRING;
+                length = ((String[]) column).length;
+            } else if (column instanceof byte[][]) {
+                types[i] = BATCH_COLUMN_BLOB;
+                length = ((byte[][]) column).length;
+            } else {
+                throw new IllegalArgumentException("column " + i
+                        + " must be a long[], double[], String[] or byte[][]");
+            }
+            if (numRows == -1) {
+                numRows = length;
+            } else if (length != numRows) {
+                throw new IllegalArgumentException("column " + i + " has " + length
+                        + " rows, expected " + numRows);
+            }
+        }
+        if (numRows == 0) {
+            return new long[0];
+        }
+
+        mDatabase.beginTransaction();
+        acquireReference();
+        try {
+            long timeStart = mDatabase.markStatementStart(mSql);
+            long[] results = native_execute_batch(types, columns, numRows, returnInsertIds);
+            mDatabase.getMetrics().recordExecution(mSql, timeStart, numRows);
+            mDatabase.setTransactionSuccessful();
+            return results;
+        } finally {
+            releaseReference();
+            mDatabase.endTransaction();
+        }
+    }
+
     private final native void native_execute();
     private final native long native_1x1_long();
     private final native String native_1x1_string();
+    private final native int native_1x1_blob_fd(int[] length) throws IOException;
+    private final native long[] native_execute_batch(int[] columnTypes, Object[] columns,
+            int numRows, boolean returnInsertIds);
 }
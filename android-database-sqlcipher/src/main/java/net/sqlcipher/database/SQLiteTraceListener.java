@@ -0,0 +1,43 @@
+package net.sqlcipher.database;
+
+/**
+ * Receives the trace events of the statements run on a {@link SQLiteDatabase}, see
+ * {@link SQLiteDatabase#setTraceListener(SQLiteTraceListener, int, double)}.
+ *
+ * <p>The methods are called from inside sqlite on the thread running the statement,
+ * while it holds both the database lock and the sqlite mutex of the connection. They
+ * must be quick and must not call back into the database, or any other object sharing
+ * its connections, such as its cursors and statements: doing so can deadlock or corrupt
+ * the running statement. Exceptions they throw are logged and dropped.</p>
+ *
+ * <p>The SQL passed to them is the text the statement was compiled from, with its
+ * parameters unexpanded, so bound values are never exposed. Statements that set a key,
+ * {@code PRAGMA key}, {@code PRAGMA rekey} and their variants and
+ * {@code ATTACH ... KEY}, are never reported, as their SQL holds the key.</p>
+ */
+public interface SQLiteTraceListener {
+  /**
+   * Called when a sampled statement starts running ({@code SQLITE_TRACE_STMT}).
+   *
+   * @param statementId identifies the statement in the events of this run
+   * @param sql the SQL of the statement
+   */
+  void onStatementStart(long statementId, String sql);
+
+  /**
+   * Called when a sampled statement has finished running, or has been reset
+   * ({@code SQLITE_TRACE_PROFILE}).
+   *
+   * @param statementId identifies the statement in the events of this run
+   * @param sql the SQL of the statement
+   * @param durationNanos the time the statement ran, in nanoseconds
+   */
+  void onStatementProfile(long statementId, String sql, long durationNanos);
+
+  /**
+   * Called for each row a sampled statement returns ({@code SQLITE_TRACE_ROW}).
+   *
+   * @param statementId identifies the statement in the events of this run
+   */
+  void onStatementRow(long statementId);
+}